@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.platform.internal;
+
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs hardware I/O off the binder threads of the hardware service.
+ *
+ * Every feature gets its own serial lane, so calls for one feature run in order
+ * while different features proceed in parallel. Callers wait for their result at most
+ * {@link #TIMEOUT_MS}. Once a lane has been busy with a single call for longer than that,
+ * it is considered stalled and new calls fail right away instead of piling up, so a slow
+ * kernel node can not starve the binder pool.
+ */
+final class HardwareExecutor {
+    private static final String TAG = "HardwareExecutor";
+    private static final boolean DEBUG = false;
+
+    static final long TIMEOUT_MS = 2000;
+
+    // Fire-and-forget calls queued on a single lane before new ones are dropped
+    private static final int MAX_PENDING_PER_LANE = 16;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // Calls taking longer than this are logged in debug builds of this class
+    private static final long SLOW_CALL_MS = 50;
+
+    /**
+     * Upper bounds, in milliseconds, of the latency histogram buckets. The last
+     * bucket of each histogram holds everything slower than the last bound.
+     */
+    static final long[] LATENCY_BUCKETS_MS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000 };
+
+    // Indices into the arrays returned by getStatistics()
+    static final int STAT_CALLS = 0;
+    static final int STAT_ERRORS = 1;
+    static final int STAT_TIMEOUTS = 2;
+    static final int STAT_REJECTED = 3;
+    static final int STAT_TOTAL_MICROS = 4;
+    static final int STAT_MAX_MICROS = 5;
+    static final int STAT_FIRST_BUCKET = 6;
+
+    /**
+     * Tells whether the result of a call means the hardware failed to handle it,
+     * so it is counted as an error.
+     */
+    interface FailureCheck<T> {
+        boolean isFailure(T result);
+    }
+
+    static final FailureCheck<Object> NEVER_FAILS = new FailureCheck<Object>() {
+        @Override
+        public boolean isFailure(Object result) {
+            return false;
+        }
+    };
+
+    static final FailureCheck<Boolean> FAILS_ON_FALSE = new FailureCheck<Boolean>() {
+        @Override
+        public boolean isFailure(Boolean result) {
+            return !Boolean.TRUE.equals(result);
+        }
+    };
+
+    static final FailureCheck<Object> FAILS_ON_NULL = new FailureCheck<Object>() {
+        @Override
+        public boolean isFailure(Object result) {
+            return result == null;
+        }
+    };
+
+    // Each lane runs at most one call at a time, so the number of threads is
+    // bounded by the number of features.
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new WorkerThreadFactory());
+
+    private final SparseArray<Lane> mLanes = new SparseArray<Lane>();
+
+    // Keyed by "feature/op", guarded by itself
+    private final ArrayMap<String, CallStats> mStats = new ArrayMap<String, CallStats>();
+
+    /**
+     * Runs the callable on the lane of the given feature and waits for its result.
+     * Only exceptions thrown by the callable are counted as errors.
+     *
+     * @return the result, or fallback if the lane is stalled, the call timed out or failed
+     */
+    <T> T call(int feature, String op, Callable<T> callable, T fallback) {
+        return call(feature, op, callable, fallback, NEVER_FAILS);
+    }
+
+    /**
+     * Runs the callable on the lane of the given feature and waits for its result.
+     * Exceptions thrown by the callable and results reported by failureCheck are
+     * counted as errors.
+     *
+     * @return the result, or fallback if the lane is stalled, the call timed out or failed
+     */
+    <T> T call(int feature, String op, Callable<T> callable, T fallback,
+            FailureCheck<? super T> failureCheck) {
+        final Lane lane = getLane(feature);
+        if (lane.isStalled()) {
+            Log.w(TAG, "Lane " + feature + " is stalled, failing " + op);
+            getStats(feature, op).onRejected();
+            return fallback;
+        }
+
+        final FutureTask<T> task = new FutureTask<T>(
+                new TimedCallable<T>(feature, op, Binder.getCallingUid(), callable, failureCheck));
+        if (!lane.execute(task, op)) {
+            getStats(feature, op).onRejected();
+            return fallback;
+        }
+        try {
+            return task.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Drop the call if it did not start yet, otherwise let it finish in the background
+            task.cancel(false);
+            getStats(feature, op).onTimeout();
+            Log.w(TAG, op + " on lane " + feature + " timed out after " + TIMEOUT_MS + "ms");
+        } catch (InterruptedException e) {
+            task.cancel(false);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                // Surface SecurityException and friends to the caller like before
+                throw (RuntimeException) cause;
+            }
+            Log.e(TAG, op + " on lane " + feature + " failed", cause);
+        }
+        return fallback;
+    }
+
+    /**
+     * Queues the runnable on the lane of the given feature without waiting for it.
+     *
+     * @return true if the call was queued
+     */
+    boolean post(int feature, String op, Runnable runnable) {
+        final Lane lane = getLane(feature);
+        if (lane.isStalled()) {
+            Log.w(TAG, "Lane " + feature + " is stalled, dropping " + op);
+            getStats(feature, op).onRejected();
+            return false;
+        }
+        final FutureTask<Object> task = new FutureTask<Object>(new TimedCallable<Object>(
+                feature, op, Binder.getCallingUid(), Executors.callable(runnable), NEVER_FAILS));
+        if (!lane.execute(task, op)) {
+            getStats(feature, op).onRejected();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the call statistics, keyed by "feature/op", with the values laid out
+     * as described by the STAT_* indices
+     */
+    Bundle getStatistics() {
+        final Bundle stats = new Bundle();
+        synchronized (mStats) {
+            for (int i = 0; i < mStats.size(); i++) {
+                stats.putLongArray(mStats.keyAt(i), mStats.valueAt(i).toArray());
+            }
+        }
+        return stats;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  Hardware calls (latency buckets in ms: "
+                + Arrays.toString(LATENCY_BUCKETS_MS) + "):");
+        synchronized (mStats) {
+            for (int i = 0; i < mStats.size(); i++) {
+                pw.println("    " + mStats.keyAt(i) + ": " + mStats.valueAt(i));
+            }
+        }
+        synchronized (mLanes) {
+            for (int i = 0; i < mLanes.size(); i++) {
+                pw.println("    lane " + mLanes.keyAt(i) + ": " + mLanes.valueAt(i));
+            }
+        }
+    }
+
+    private CallStats getStats(int feature, String op) {
+        final String key = feature + "/" + op;
+        synchronized (mStats) {
+            CallStats stats = mStats.get(key);
+            if (stats == null) {
+                stats = new CallStats();
+                mStats.put(key, stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Measures how long the hardware takes to handle a call.
+     */
+    private final class TimedCallable<T> implements Callable<T> {
+        private final int mFeature;
+        private final String mOp;
+        private final int mCallingUid;
+        private final Callable<T> mCallable;
+        private final FailureCheck<? super T> mFailureCheck;
+
+        TimedCallable(int feature, String op, int callingUid, Callable<T> callable,
+                FailureCheck<? super T> failureCheck) {
+            mFeature = feature;
+            mOp = op;
+            mCallingUid = callingUid;
+            mCallable = callable;
+            mFailureCheck = failureCheck;
+        }
+
+        @Override
+        public T call() throws Exception {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            boolean failed = true;
+            try {
+                final T result = mCallable.call();
+                failed = mFailureCheck.isFailure(result);
+                return result;
+            } finally {
+                final long micros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+                getStats(mFeature, mOp).onCall(micros, failed);
+                if (DEBUG && micros >= SLOW_CALL_MS * 1000) {
+                    Log.d(TAG, "Slow call " + mOp + " on lane " + mFeature + " took "
+                            + micros / 1000 + "ms for uid " + mCallingUid);
+                }
+            }
+        }
+    }
+
+    private static final class CallStats {
+        private long mCalls;
+        private long mErrors;
+        private long mTimeouts;
+        private long mRejected;
+        private long mTotalMicros;
+        private long mMaxMicros;
+        private final long[] mBuckets = new long[LATENCY_BUCKETS_MS.length + 1];
+
+        synchronized void onCall(long micros, boolean failed) {
+            mCalls++;
+            if (failed) {
+                mErrors++;
+            }
+            mTotalMicros += micros;
+            mMaxMicros = Math.max(mMaxMicros, micros);
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS_MS.length
+                    && micros >= LATENCY_BUCKETS_MS[bucket] * 1000) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+        }
+
+        synchronized void onTimeout() {
+            mTimeouts++;
+        }
+
+        synchronized void onRejected() {
+            mRejected++;
+        }
+
+        synchronized long[] toArray() {
+            final long[] values = new long[STAT_FIRST_BUCKET + mBuckets.length];
+            values[STAT_CALLS] = mCalls;
+            values[STAT_ERRORS] = mErrors;
+            values[STAT_TIMEOUTS] = mTimeouts;
+            values[STAT_REJECTED] = mRejected;
+            values[STAT_TOTAL_MICROS] = mTotalMicros;
+            values[STAT_MAX_MICROS] = mMaxMicros;
+            System.arraycopy(mBuckets, 0, values, STAT_FIRST_BUCKET, mBuckets.length);
+            return values;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "calls=" + mCalls + " errors=" + mErrors + " timeouts=" + mTimeouts
+                    + " rejected=" + mRejected
+                    + " avg=" + (mCalls > 0 ? mTotalMicros / mCalls : 0) + "us"
+                    + " max=" + mMaxMicros + "us"
+                    + " histogram=" + Arrays.toString(mBuckets);
+        }
+    }
+
+    private Lane getLane(int feature) {
+        synchronized (mLanes) {
+            Lane lane = mLanes.get(feature);
+            if (lane == null) {
+                lane = new Lane(feature);
+                mLanes.put(feature, lane);
+            }
+            return lane;
+        }
+    }
+
+    private final class Lane {
+        private final int mFeature;
+        private final ArrayDeque<FutureTask<?>> mPending = new ArrayDeque<FutureTask<?>>();
+        private final ArrayDeque<String> mPendingOps = new ArrayDeque<String>();
+
+        private FutureTask<?> mActive;
+        private String mActiveOp;
+        private long mActiveSince;
+
+        Lane(int feature) {
+            mFeature = feature;
+        }
+
+        synchronized boolean isStalled() {
+            return mActive != null
+                    && SystemClock.uptimeMillis() - mActiveSince > TIMEOUT_MS;
+        }
+
+        synchronized boolean execute(FutureTask<?> task, String op) {
+            if (mPending.size() >= MAX_PENDING_PER_LANE) {
+                Log.w(TAG, "Lane " + mFeature + " is full, dropping " + op);
+                return false;
+            }
+            mPending.offer(task);
+            mPendingOps.offer(op);
+            if (mActive == null) {
+                scheduleNext();
+            }
+            return true;
+        }
+
+        private synchronized void scheduleNext() {
+            mActive = mPending.poll();
+            mActiveOp = mPendingOps.poll();
+            if (mActive == null) {
+                return;
+            }
+            mActiveSince = SystemClock.uptimeMillis();
+
+            final FutureTask<?> task = mActive;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        onFinished();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "active=" + mActiveOp + (mActive != null
+                    ? " for " + (SystemClock.uptimeMillis() - mActiveSince) + "ms" : "")
+                    + " pending=" + mPending.size();
+        }
+
+        private synchronized void onFinished() {
+            final long elapsed = SystemClock.uptimeMillis() - mActiveSince;
+            if (elapsed > TIMEOUT_MS) {
+                Log.w(TAG, mActiveOp + " on lane " + mFeature + " stalled for " + elapsed
+                        + "ms, " + mPending.size() + " calls waiting");
+            }
+            scheduleNext();
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                    r.run();
+                }
+            }, TAG + " #" + mCount.getAndIncrement());
+        }
+    }
+}
@@ -18,27 +18,36 @@ package org.lineageos.platform.internal;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Bundle;
+import android.os.FileObserver;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
-import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Range;
 
+import com.android.internal.os.BackgroundThread;
 import com.android.server.SystemService;
 
 import lineageos.app.LineageContextConstants;
 import lineageos.hardware.ILineageHardwareService;
 import lineageos.hardware.LineageHardwareManager;
 import lineageos.hardware.DisplayMode;
+import lineageos.hardware.HardwareCapabilities;
+import lineageos.hardware.IHardwareStateListener;
 import lineageos.hardware.HSIC;
 import lineageos.hardware.TouchscreenGesture;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.lineageos.hardware.AdaptiveBacklight;
 import org.lineageos.hardware.AutoContrast;
@@ -57,6 +66,8 @@ import org.lineageos.hardware.SunlightEnhancement;
 import org.lineageos.hardware.TouchscreenGestures;
 import org.lineageos.hardware.TouchscreenHovering;
 import org.lineageos.hardware.VibratorHW;
+import org.lineageos.internal.util.DisplayModeMappings;
+import org.lineageos.internal.util.SysfsNode;
 
 /** @hide */
 public class LineageHardwareService extends LineageSystemService {
@@ -64,15 +75,52 @@ public class LineageHardwareService extends LineageSystemService {
     private static final boolean DEBUG = true;
     private static final String TAG = LineageHardwareService.class.getSimpleName();
 
+    // The capabilities span several features, so they are read on a lane of their own
+    private static final int CAPABILITIES_LANE = 0;
+
     private final Context mContext;
     private final LineageHardwareInterface mLineageHwImpl;
 
-    private final ArrayMap<String, String> mDisplayModeMappings =
-            new ArrayMap<String, String>();
-    private final boolean mFilterDisplayModes;
+    // Serializes changes to boolean features so batched updates are atomic
+    private final Object mFeatureStateLock = new Object();
+
+    private final Handler mHandler = BackgroundThread.getHandler();
+    private final HardwareExecutor mExecutor = new HardwareExecutor();
+    private final RemoteCallbackList<IHardwareStateListener> mStateListeners =
+            new RemoteCallbackList<IHardwareStateListener>() {
+        @Override
+        public void onCallbackDied(IHardwareStateListener listener) {
+            mHandler.post(mUpdateStateObservers);
+        }
+    };
+    private final ArrayList<StateNodeObserver> mStateNodeObservers =
+            new ArrayList<StateNodeObserver>();
+
+    // Last states reported to listeners, only accessed from mHandler
+    private boolean mWatchingStateNodes;
+    private int mKnownFeatures;
+    private int mReportedFeatureStates;
+    private DisplayMode mReportedDisplayMode;
+
+    // Animated color calibration writes are coalesced and rate limited,
+    // guarded by mCalibrationLock
+    private final Object mCalibrationLock = new Object();
+    private final long mCalibrationWriteIntervalMs;
+    private int[] mPendingCalibration;
+    private int[] mLastCalibration;
+    private boolean mCalibrationWriteScheduled;
+    private long mLastCalibrationWriteTime;
+    private long mCalibrationFramesWritten;
+    private long mCalibrationFramesSkipped;
+    private long mCalibrationFramesFailed;
+
+    private final DisplayModeMappings mDisplayModeMappings;
+    // The remapped display modes never change, computed on first use
+    private volatile DisplayMode[] mDisplayModes;
 
     private interface LineageHardwareInterface {
         public int getSupportedFeatures();
+        public HardwareCapabilities getCapabilities();
         public boolean get(int feature);
         public boolean set(int feature, boolean enable);
 
@@ -82,6 +130,8 @@ public class LineageHardwareService extends LineageSystemService {
         public int getNumGammaControls();
         public int[] getDisplayGammaCalibration(int idx);
         public boolean setDisplayGammaCalibration(int idx, int[] rgb);
+        public int[] getDisplayGammaCalibrations();
+        public boolean setDisplayGammaCalibrations(int[] calibrations);
 
         public int[] getVibratorIntensity();
         public boolean setVibratorIntensity(int intensity);
@@ -117,6 +167,7 @@ public class LineageHardwareService extends LineageSystemService {
     private class LegacyLineageHardware implements LineageHardwareInterface {
 
         private int mSupportedFeatures = 0;
+        private HardwareCapabilities mCapabilities;
 
         public LegacyLineageHardware() {
             if (AdaptiveBacklight.isSupported())
@@ -159,6 +210,30 @@ public class LineageHardwareService extends LineageSystemService {
             return mSupportedFeatures;
         }
 
+        public synchronized HardwareCapabilities getCapabilities() {
+            // Ranges and defaults are fixed after boot, so read them from sysfs only once
+            if (mCapabilities == null) {
+                int colorDefault = 0, colorMin = 0, colorMax = 0;
+                if ((mSupportedFeatures &
+                        LineageHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION) != 0) {
+                    colorDefault = DisplayColorCalibration.getDefValue();
+                    colorMin = DisplayColorCalibration.getMinValue();
+                    colorMax = DisplayColorCalibration.getMaxValue();
+                }
+                int vibratorDefault = 0, vibratorMin = 0, vibratorMax = 0, vibratorWarning = 0;
+                if ((mSupportedFeatures & LineageHardwareManager.FEATURE_VIBRATOR) != 0) {
+                    vibratorDefault = VibratorHW.getDefaultIntensity();
+                    vibratorMin = VibratorHW.getMinIntensity();
+                    vibratorMax = VibratorHW.getMaxIntensity();
+                    vibratorWarning = VibratorHW.getWarningThreshold();
+                }
+                mCapabilities = new HardwareCapabilities(mSupportedFeatures,
+                        colorDefault, colorMin, colorMax,
+                        vibratorDefault, vibratorMin, vibratorMax, vibratorWarning);
+            }
+            return mCapabilities;
+        }
+
         public boolean get(int feature) {
             switch(feature) {
                 case LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT:
@@ -207,49 +282,35 @@ public class LineageHardwareService extends LineageSystemService {
             }
         }
 
-        private int[] splitStringToInt(String input, String delimiter) {
-            if (input == null || delimiter == null) {
-                return null;
-            }
-            String strArray[] = input.split(delimiter);
-            try {
-                int intArray[] = new int[strArray.length];
-                for(int i = 0; i < strArray.length; i++) {
-                    intArray[i] = Integer.parseInt(strArray[i]);
-                }
-                return intArray;
-            } catch (NumberFormatException e) {
-                /* ignore */
-            }
-            return null;
+        private String rgbToString(int[] rgb) {
+            return rgbToString(rgb, 0);
         }
 
-        private String rgbToString(int[] rgb) {
+        private String rgbToString(int[] rgb, int offset) {
             StringBuilder builder = new StringBuilder();
-            builder.append(rgb[LineageHardwareManager.COLOR_CALIBRATION_RED_INDEX]);
+            builder.append(rgb[offset + LineageHardwareManager.COLOR_CALIBRATION_RED_INDEX]);
             builder.append(" ");
-            builder.append(rgb[LineageHardwareManager.COLOR_CALIBRATION_GREEN_INDEX]);
+            builder.append(rgb[offset + LineageHardwareManager.COLOR_CALIBRATION_GREEN_INDEX]);
             builder.append(" ");
-            builder.append(rgb[LineageHardwareManager.COLOR_CALIBRATION_BLUE_INDEX]);
+            builder.append(rgb[offset + LineageHardwareManager.COLOR_CALIBRATION_BLUE_INDEX]);
             return builder.toString();
         }
 
         public int[] getDisplayColorCalibration() {
-            int[] rgb = splitStringToInt(DisplayColorCalibration.getCurColors(), " ");
-            if (rgb == null || rgb.length != 3) {
+            // Red, green and blue are parsed straight into their slots
+            int[] currentCalibration = new int[6];
+            if (SysfsNode.parseInts(DisplayColorCalibration.getCurColors(), currentCalibration,
+                    LineageHardwareManager.COLOR_CALIBRATION_RED_INDEX, 3) != 3) {
                 Log.e(TAG, "Invalid color calibration string");
                 return null;
             }
-            int[] currentCalibration = new int[6];
-            currentCalibration[LineageHardwareManager.COLOR_CALIBRATION_RED_INDEX] = rgb[0];
-            currentCalibration[LineageHardwareManager.COLOR_CALIBRATION_GREEN_INDEX] = rgb[1];
-            currentCalibration[LineageHardwareManager.COLOR_CALIBRATION_BLUE_INDEX] = rgb[2];
+            final HardwareCapabilities caps = getCapabilities();
             currentCalibration[LineageHardwareManager.COLOR_CALIBRATION_DEFAULT_INDEX] =
-                DisplayColorCalibration.getDefValue();
+                caps.getColorCalibrationDefault();
             currentCalibration[LineageHardwareManager.COLOR_CALIBRATION_MIN_INDEX] =
-                DisplayColorCalibration.getMinValue();
+                caps.getColorCalibrationMin();
             currentCalibration[LineageHardwareManager.COLOR_CALIBRATION_MAX_INDEX] =
-                DisplayColorCalibration.getMaxValue();
+                caps.getColorCalibrationMax();
             return currentCalibration;
         }
 
@@ -261,20 +322,25 @@ public class LineageHardwareService extends LineageSystemService {
             return DisplayGammaCalibration.getNumberOfControls();
         }
 
-        public int[] getDisplayGammaCalibration(int idx) {
-            int[] rgb = splitStringToInt(DisplayGammaCalibration.getCurGamma(idx), " ");
-            if (rgb == null || rgb.length != 3) {
-                Log.e(TAG, "Invalid gamma calibration string");
-                return null;
+        private boolean readGammaCalibration(int idx, int[] out, int offset) {
+            // Red, green and blue are parsed straight into their slots
+            if (SysfsNode.parseInts(DisplayGammaCalibration.getCurGamma(idx),
+                    out, offset + LineageHardwareManager.GAMMA_CALIBRATION_RED_INDEX, 3) != 3) {
+                Log.e(TAG, "Invalid gamma calibration string for control " + idx);
+                return false;
             }
-            int[] currentCalibration = new int[5];
-            currentCalibration[LineageHardwareManager.GAMMA_CALIBRATION_RED_INDEX] = rgb[0];
-            currentCalibration[LineageHardwareManager.GAMMA_CALIBRATION_GREEN_INDEX] = rgb[1];
-            currentCalibration[LineageHardwareManager.GAMMA_CALIBRATION_BLUE_INDEX] = rgb[2];
-            currentCalibration[LineageHardwareManager.GAMMA_CALIBRATION_MIN_INDEX] =
+            out[offset + LineageHardwareManager.GAMMA_CALIBRATION_MIN_INDEX] =
                 DisplayGammaCalibration.getMinValue(idx);
-            currentCalibration[LineageHardwareManager.GAMMA_CALIBRATION_MAX_INDEX] =
+            out[offset + LineageHardwareManager.GAMMA_CALIBRATION_MAX_INDEX] =
                 DisplayGammaCalibration.getMaxValue(idx);
+            return true;
+        }
+
+        public int[] getDisplayGammaCalibration(int idx) {
+            int[] currentCalibration = new int[LineageHardwareManager.GAMMA_CALIBRATION_STRIDE];
+            if (!readGammaCalibration(idx, currentCalibration, 0)) {
+                return null;
+            }
             return currentCalibration;
         }
 
@@ -282,13 +348,42 @@ public class LineageHardwareService extends LineageSystemService {
             return DisplayGammaCalibration.setGamma(idx, rgbToString(rgb));
         }
 
+        public int[] getDisplayGammaCalibrations() {
+            final int controls = DisplayGammaCalibration.getNumberOfControls();
+            int[] calibrations =
+                    new int[controls * LineageHardwareManager.GAMMA_CALIBRATION_STRIDE];
+            for (int idx = 0; idx < controls; idx++) {
+                if (!readGammaCalibration(idx, calibrations,
+                        idx * LineageHardwareManager.GAMMA_CALIBRATION_STRIDE)) {
+                    return null;
+                }
+            }
+            return calibrations;
+        }
+
+        public boolean setDisplayGammaCalibrations(int[] calibrations) {
+            final int controls = DisplayGammaCalibration.getNumberOfControls();
+            if (calibrations.length != controls * LineageHardwareManager.GAMMA_CALIBRATION_STRIDE) {
+                Log.e(TAG, "Expected gamma calibrations for " + controls + " controls");
+                return false;
+            }
+            for (int idx = 0; idx < controls; idx++) {
+                if (!DisplayGammaCalibration.setGamma(idx, rgbToString(calibrations,
+                        idx * LineageHardwareManager.GAMMA_CALIBRATION_STRIDE))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         public int[] getVibratorIntensity() {
+            final HardwareCapabilities caps = getCapabilities();
             int[] vibrator = new int[5];
             vibrator[LineageHardwareManager.VIBRATOR_INTENSITY_INDEX] = VibratorHW.getCurIntensity();
-            vibrator[LineageHardwareManager.VIBRATOR_DEFAULT_INDEX] = VibratorHW.getDefaultIntensity();
-            vibrator[LineageHardwareManager.VIBRATOR_MIN_INDEX] = VibratorHW.getMinIntensity();
-            vibrator[LineageHardwareManager.VIBRATOR_MAX_INDEX] = VibratorHW.getMaxIntensity();
-            vibrator[LineageHardwareManager.VIBRATOR_WARNING_INDEX] = VibratorHW.getWarningThreshold();
+            vibrator[LineageHardwareManager.VIBRATOR_DEFAULT_INDEX] = caps.getVibratorDefaultIntensity();
+            vibrator[LineageHardwareManager.VIBRATOR_MIN_INDEX] = caps.getVibratorMinIntensity();
+            vibrator[LineageHardwareManager.VIBRATOR_MAX_INDEX] = caps.getVibratorMaxIntensity();
+            vibrator[LineageHardwareManager.VIBRATOR_WARNING_INDEX] = caps.getVibratorWarningIntensity();
             return vibrator;
         }
 
@@ -387,18 +482,31 @@ public class LineageHardwareService extends LineageSystemService {
         mLineageHwImpl = getImpl(context);
         publishBinderService(LineageContextConstants.LINEAGE_HARDWARE_SERVICE, mService);
 
-        final String[] mappings = mContext.getResources().getStringArray(
-                org.lineageos.platform.internal.R.array.config_displayModeMappings);
-        if (mappings != null && mappings.length > 0) {
-            for (String mapping : mappings) {
-                String[] split = mapping.split(":");
-                if (split.length == 2) {
-                    mDisplayModeMappings.put(split[0], split[1]);
+        mDisplayModeMappings = new DisplayModeMappings(
+                mContext.getResources().getStringArray(
+                        org.lineageos.platform.internal.R.array.config_displayModeMappings),
+                mContext.getResources().getBoolean(
+                        org.lineageos.platform.internal.R.bool.config_filterDisplayModes));
+        mCalibrationWriteIntervalMs = mContext.getResources().getInteger(
+                org.lineageos.platform.internal.R.integer
+                        .config_displayColorCalibrationWriteIntervalMs);
+
+        final String[] stateNodes = mContext.getResources().getStringArray(
+                org.lineageos.platform.internal.R.array.config_hardwareStateNodes);
+        if (stateNodes != null) {
+            for (String stateNode : stateNodes) {
+                String[] split = stateNode.split(":", 2);
+                if (split.length != 2) {
+                    continue;
+                }
+                try {
+                    mStateNodeObservers.add(
+                            new StateNodeObserver(Integer.decode(split[0]), split[1]));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Invalid hardware state node " + stateNode);
                 }
             }
         }
-        mFilterDisplayModes = mContext.getResources().getBoolean(
-                org.lineageos.platform.internal.R.bool.config_filterDisplayModes);
     }
 
     @Override
@@ -420,17 +528,286 @@ public class LineageHardwareService extends LineageSystemService {
     public void onStart() {
     }
 
+    private HardwareCapabilities getCapabilities() {
+        return mExecutor.call(CAPABILITIES_LANE, "getCapabilities",
+                new Callable<HardwareCapabilities>() {
+            @Override
+            public HardwareCapabilities call() {
+                return mLineageHwImpl.getCapabilities();
+            }
+        }, null, HardwareExecutor.FAILS_ON_NULL);
+    }
+
     private DisplayMode remapDisplayMode(DisplayMode in) {
         if (in == null) {
             return null;
         }
-        if (mDisplayModeMappings.containsKey(in.name)) {
-            return new DisplayMode(in.id, mDisplayModeMappings.get(in.name));
+        final DisplayMode[] modes = mDisplayModes;
+        if (modes != null) {
+            for (DisplayMode mode : modes) {
+                if (mode.id == in.id) {
+                    return mode;
+                }
+            }
+        }
+        return mDisplayModeMappings.remap(in);
+    }
+
+    /**
+     * Watches a node backing a hardware feature, so changes made outside of
+     * this service reach the registered listeners as well.
+     */
+    private class StateNodeObserver extends FileObserver {
+        private final int mFeature;
+
+        public StateNodeObserver(int feature, String path) {
+            super(path, FileObserver.MODIFY | FileObserver.CLOSE_WRITE);
+            mFeature = feature;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if ((mLineageHwImpl.getSupportedFeatures() & mFeature) == 0) {
+                return;
+            }
+            // Read the new state on the lane of the feature, and report it from mHandler
+            mExecutor.post(mFeature, "onStateChanged", new Runnable() {
+                @Override
+                public void run() {
+                    if (mFeature == LineageHardwareManager.FEATURE_DISPLAY_MODES) {
+                        postDisplayMode(
+                                remapDisplayMode(mLineageHwImpl.getCurrentDisplayMode()));
+                    } else {
+                        postFeatureStates(mFeature, mLineageHwImpl.get(mFeature) ? mFeature : 0);
+                    }
+                }
+            });
+        }
+    }
+
+    private final Runnable mUpdateStateObservers = new Runnable() {
+        @Override
+        public void run() {
+            // Only watch the nodes while somebody is listening
+            final boolean watch = mStateListeners.getRegisteredCallbackCount() > 0;
+            if (watch == mWatchingStateNodes) {
+                return;
+            }
+            mWatchingStateNodes = watch;
+            for (StateNodeObserver observer : mStateNodeObservers) {
+                if (watch) {
+                    observer.startWatching();
+                } else {
+                    observer.stopWatching();
+                }
+            }
+            if (!watch) {
+                mKnownFeatures = 0;
+                mReportedFeatureStates = 0;
+                mReportedDisplayMode = null;
+            }
+        }
+    };
+
+    private void postFeatureStates(final int mask, final int values) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int remaining = mask; remaining != 0; remaining &= remaining - 1) {
+                    final int feature = Integer.lowestOneBit(remaining);
+                    reportFeatureState(feature, (values & feature) != 0);
+                }
+            }
+        });
+    }
+
+    private void postDisplayMode(final DisplayMode mode) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                reportDisplayMode(mode);
+            }
+        });
+    }
+
+    private void reportFeatureState(int feature, boolean enabled) {
+        if (!mWatchingStateNodes) {
+            return;
+        }
+        if ((mKnownFeatures & feature) != 0
+                && ((mReportedFeatureStates & feature) != 0) == enabled) {
+            return;
+        }
+        mKnownFeatures |= feature;
+        if (enabled) {
+            mReportedFeatureStates |= feature;
+        } else {
+            mReportedFeatureStates &= ~feature;
+        }
+
+        final int N = mStateListeners.beginBroadcast();
+        for (int i = 0; i < N; i++) {
+            try {
+                mStateListeners.getBroadcastItem(i).onFeatureStateChanged(feature, enabled);
+            } catch (RemoteException e) {
+            }
+        }
+        mStateListeners.finishBroadcast();
+    }
+
+    private void reportDisplayMode(DisplayMode mode) {
+        if (!mWatchingStateNodes || mode == null) {
+            return;
+        }
+        if (mReportedDisplayMode != null && mReportedDisplayMode.id == mode.id) {
+            return;
+        }
+        mReportedDisplayMode = mode;
+
+        final int N = mStateListeners.beginBroadcast();
+        for (int i = 0; i < N; i++) {
+            try {
+                mStateListeners.getBroadcastItem(i).onDisplayModeChanged(mode);
+            } catch (RemoteException e) {
+            }
+        }
+        mStateListeners.finishBroadcast();
+    }
+
+    private void queueColorCalibration(int[] rgb) {
+        synchronized (mCalibrationLock) {
+            final int[] latest = mPendingCalibration != null
+                    ? mPendingCalibration : mLastCalibration;
+            if (Arrays.equals(latest, rgb)) {
+                // Nothing would change on the panel
+                mCalibrationFramesSkipped++;
+                return;
+            }
+            if (mPendingCalibration != null) {
+                // Superseded before it reached the hardware
+                mCalibrationFramesSkipped++;
+            }
+            mPendingCalibration = rgb;
+            scheduleCalibrationWriteLocked();
+        }
+    }
+
+    private void scheduleCalibrationWriteLocked() {
+        if (mCalibrationWriteScheduled || mPendingCalibration == null) {
+            return;
+        }
+        mCalibrationWriteScheduled = true;
+        final long delay = mLastCalibrationWriteTime + mCalibrationWriteIntervalMs
+                - SystemClock.uptimeMillis();
+        mHandler.postDelayed(mFlushCalibration, Math.max(0, delay));
+    }
+
+    private final Runnable mFlushCalibration = new Runnable() {
+        @Override
+        public void run() {
+            if (!mExecutor.post(LineageHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION,
+                    "setDisplayColorCalibrationAsync", mWriteCalibration)) {
+                synchronized (mCalibrationLock) {
+                    if (mPendingCalibration != null) {
+                        mPendingCalibration = null;
+                        mCalibrationFramesSkipped++;
+                    }
+                    mCalibrationWriteScheduled = false;
+                }
+            }
+        }
+    };
+
+    private final Runnable mWriteCalibration = new Runnable() {
+        @Override
+        public void run() {
+            final int[] rgb;
+            synchronized (mCalibrationLock) {
+                rgb = mPendingCalibration;
+                mPendingCalibration = null;
+            }
+            final boolean written = rgb != null && mLineageHwImpl.setDisplayColorCalibration(rgb);
+            synchronized (mCalibrationLock) {
+                if (rgb != null) {
+                    mLastCalibration = written ? rgb : null;
+                    mLastCalibrationWriteTime = SystemClock.uptimeMillis();
+                    if (written) {
+                        mCalibrationFramesWritten++;
+                    } else {
+                        mCalibrationFramesFailed++;
+                    }
+                }
+                mCalibrationWriteScheduled = false;
+                scheduleCalibrationWriteLocked();
+            }
+        }
+    };
+
+    private boolean writeColorCalibration(int[] rgb) {
+        synchronized (mCalibrationLock) {
+            if (mPendingCalibration != null) {
+                // An explicit value always wins over an animation frame
+                mPendingCalibration = null;
+                mCalibrationFramesSkipped++;
+            }
+        }
+        final boolean written = mLineageHwImpl.setDisplayColorCalibration(rgb);
+        synchronized (mCalibrationLock) {
+            mLastCalibration = written ? Arrays.copyOf(rgb, 3) : null;
+        }
+        return written;
+    }
+
+    private boolean setFeatureState(int feature, boolean enable) {
+        synchronized (mFeatureStateLock) {
+            if (!mLineageHwImpl.set(feature, enable)) {
+                return false;
+            }
+        }
+        postFeatureStates(feature, enable ? feature : 0);
+        return true;
+    }
+
+    private int readFeatureStates(int features) {
+        int states = 0;
+        synchronized (mFeatureStateLock) {
+            for (int remaining = features; remaining != 0; remaining &= remaining - 1) {
+                final int feature = Integer.lowestOneBit(remaining);
+                if (mLineageHwImpl.get(feature)) {
+                    states |= feature;
+                }
+            }
         }
-        if (!mFilterDisplayModes) {
-            return in;
+        return states;
+    }
+
+    private boolean applyFeatureStates(int features, int values) {
+        synchronized (mFeatureStateLock) {
+            int changed = 0;
+            int previous = 0;
+            for (int remaining = features; remaining != 0; remaining &= remaining - 1) {
+                final int feature = Integer.lowestOneBit(remaining);
+                final boolean enable = (values & feature) != 0;
+                final boolean current = mLineageHwImpl.get(feature);
+                if (current == enable) {
+                    continue;
+                }
+                if (!mLineageHwImpl.set(feature, enable)) {
+                    Log.e(TAG, "Unable to set feature " + feature + ", restoring " + changed);
+                    for (int restore = changed; restore != 0; restore &= restore - 1) {
+                        final int f = Integer.lowestOneBit(restore);
+                        mLineageHwImpl.set(f, (previous & f) != 0);
+                    }
+                    return false;
+                }
+                changed |= feature;
+                if (current) {
+                    previous |= feature;
+                }
+            }
         }
-        return null;
+        postFeatureStates(features, values);
+        return true;
     }
 
     private final IBinder mService = new ILineageHardwareService.Stub() {
@@ -447,25 +824,72 @@ public class LineageHardwareService extends LineageSystemService {
         }
 
         @Override
-        public boolean get(int feature) {
+        public boolean get(final int feature) {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (!isSupported(feature)) {
                 Log.e(TAG, "feature " + feature + " is not supported");
                 return false;
             }
-            return mLineageHwImpl.get(feature);
+            return mExecutor.call(feature, "get", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return mLineageHwImpl.get(feature);
+                }
+            }, false);
         }
 
         @Override
-        public boolean set(int feature, boolean enable) {
+        public boolean set(final int feature, final boolean enable) {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (!isSupported(feature)) {
                 Log.e(TAG, "feature " + feature + " is not supported");
                 return false;
             }
-            return mLineageHwImpl.set(feature, enable);
+            return mExecutor.call(feature, "set", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return setFeatureState(feature, enable);
+                }
+            }, false, HardwareExecutor.FAILS_ON_FALSE);
+        }
+
+        @Override
+        public int getFeatureStates(int mask) {
+            mContext.enforceCallingOrSelfPermission(
+                    lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            final int features = mask & getSupportedFeatures()
+                    & LineageHardwareManager.BOOLEAN_FEATURES_MASK;
+            if (features != mask) {
+                Log.e(TAG, "features " + (mask & ~features) + " are not supported");
+            }
+            return mExecutor.call(LineageHardwareManager.BOOLEAN_FEATURES_MASK, "getFeatureStates",
+                    new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return readFeatureStates(features);
+                }
+            }, 0);
+        }
+
+        @Override
+        public boolean setFeatureStates(int mask, final int values) {
+            mContext.enforceCallingOrSelfPermission(
+                    lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            final int features = mask & getSupportedFeatures()
+                    & LineageHardwareManager.BOOLEAN_FEATURES_MASK;
+            if (features != mask) {
+                Log.e(TAG, "features " + (mask & ~features) + " are not supported");
+                return false;
+            }
+            return mExecutor.call(LineageHardwareManager.BOOLEAN_FEATURES_MASK, "setFeatureStates",
+                    new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return applyFeatureStates(features, values);
+                }
+            }, false, HardwareExecutor.FAILS_ON_FALSE);
         }
 
         @Override
@@ -476,11 +900,17 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Display color calibration is not supported");
                 return null;
             }
-            return mLineageHwImpl.getDisplayColorCalibration();
+            return mExecutor.call(LineageHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION,
+                    "getDisplayColorCalibration", new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    return mLineageHwImpl.getDisplayColorCalibration();
+                }
+            }, null, HardwareExecutor.FAILS_ON_NULL);
         }
 
         @Override
-        public boolean setDisplayColorCalibration(int[] rgb) {
+        public boolean setDisplayColorCalibration(final int[] rgb) {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (!isSupported(LineageHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION)) {
@@ -491,7 +921,28 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Invalid color calibration");
                 return false;
             }
-            return mLineageHwImpl.setDisplayColorCalibration(rgb);
+            return mExecutor.call(LineageHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION,
+                    "setDisplayColorCalibration", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return writeColorCalibration(rgb);
+                }
+            }, false, HardwareExecutor.FAILS_ON_FALSE);
+        }
+
+        @Override
+        public void setDisplayColorCalibrationAsync(final int[] rgb) {
+            mContext.enforceCallingOrSelfPermission(
+                    lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            if (!isSupported(LineageHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION)) {
+                Log.e(TAG, "Display color calibration is not supported");
+                return;
+            }
+            if (rgb == null || rgb.length < 3) {
+                Log.e(TAG, "Invalid color calibration");
+                return;
+            }
+            queueColorCalibration(Arrays.copyOf(rgb, 3));
         }
 
         @Override
@@ -502,29 +953,85 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Display gamma calibration is not supported");
                 return 0;
             }
-            return mLineageHwImpl.getNumGammaControls();
+            return mExecutor.call(LineageHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION,
+                    "getNumGammaControls", new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return mLineageHwImpl.getNumGammaControls();
+                }
+            }, 0);
         }
 
         @Override
-        public int[] getDisplayGammaCalibration(int idx) {
+        public int[] getDisplayGammaCalibration(final int idx) {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (!isSupported(LineageHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION)) {
                 Log.e(TAG, "Display gamma calibration is not supported");
                 return null;
             }
-            return mLineageHwImpl.getDisplayGammaCalibration(idx);
+            return mExecutor.call(LineageHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION,
+                    "getDisplayGammaCalibration", new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    return mLineageHwImpl.getDisplayGammaCalibration(idx);
+                }
+            }, null, HardwareExecutor.FAILS_ON_NULL);
         }
 
         @Override
-        public boolean setDisplayGammaCalibration(int idx, int[] rgb) {
+        public boolean setDisplayGammaCalibration(final int idx, final int[] rgb) {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (!isSupported(LineageHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION)) {
                 Log.e(TAG, "Display gamma calibration is not supported");
                 return false;
             }
-            return mLineageHwImpl.setDisplayGammaCalibration(idx, rgb);
+            return mExecutor.call(LineageHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION,
+                    "setDisplayGammaCalibration", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return mLineageHwImpl.setDisplayGammaCalibration(idx, rgb);
+                }
+            }, false, HardwareExecutor.FAILS_ON_FALSE);
+        }
+
+        @Override
+        public int[] getDisplayGammaCalibrations() {
+            mContext.enforceCallingOrSelfPermission(
+                    lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            if (!isSupported(LineageHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION)) {
+                Log.e(TAG, "Display gamma calibration is not supported");
+                return null;
+            }
+            return mExecutor.call(LineageHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION,
+                    "getDisplayGammaCalibrations", new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    return mLineageHwImpl.getDisplayGammaCalibrations();
+                }
+            }, null, HardwareExecutor.FAILS_ON_NULL);
+        }
+
+        @Override
+        public boolean setDisplayGammaCalibrations(final int[] calibrations) {
+            mContext.enforceCallingOrSelfPermission(
+                    lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            if (!isSupported(LineageHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION)) {
+                Log.e(TAG, "Display gamma calibration is not supported");
+                return false;
+            }
+            if (calibrations == null) {
+                Log.e(TAG, "Invalid gamma calibrations");
+                return false;
+            }
+            return mExecutor.call(LineageHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION,
+                    "setDisplayGammaCalibrations", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return mLineageHwImpl.setDisplayGammaCalibrations(calibrations);
+                }
+            }, false, HardwareExecutor.FAILS_ON_FALSE);
         }
 
         @Override
@@ -535,18 +1042,30 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Vibrator is not supported");
                 return null;
             }
-            return mLineageHwImpl.getVibratorIntensity();
+            return mExecutor.call(LineageHardwareManager.FEATURE_VIBRATOR,
+                    "getVibratorIntensity", new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    return mLineageHwImpl.getVibratorIntensity();
+                }
+            }, null, HardwareExecutor.FAILS_ON_NULL);
         }
 
         @Override
-        public boolean setVibratorIntensity(int intensity) {
+        public boolean setVibratorIntensity(final int intensity) {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (!isSupported(LineageHardwareManager.FEATURE_VIBRATOR)) {
                 Log.e(TAG, "Vibrator is not supported");
                 return false;
             }
-            return mLineageHwImpl.setVibratorIntensity(intensity);
+            return mExecutor.call(LineageHardwareManager.FEATURE_VIBRATOR,
+                    "setVibratorIntensity", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return mLineageHwImpl.setVibratorIntensity(intensity);
+                }
+            }, false, HardwareExecutor.FAILS_ON_FALSE);
         }
 
         @Override
@@ -557,7 +1076,13 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Long term orbits is not supported");
                 return null;
             }
-            return mLineageHwImpl.getLtoSource();
+            return mExecutor.call(LineageHardwareManager.FEATURE_LONG_TERM_ORBITS,
+                    "getLtoSource", new Callable<String>() {
+                @Override
+                public String call() {
+                    return mLineageHwImpl.getLtoSource();
+                }
+            }, null);
         }
 
         @Override
@@ -568,7 +1093,13 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Long term orbits is not supported");
                 return null;
             }
-            return mLineageHwImpl.getLtoDestination();
+            return mExecutor.call(LineageHardwareManager.FEATURE_LONG_TERM_ORBITS,
+                    "getLtoDestination", new Callable<String>() {
+                @Override
+                public String call() {
+                    return mLineageHwImpl.getLtoDestination();
+                }
+            }, null);
         }
 
         @Override
@@ -579,7 +1110,13 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Long term orbits is not supported");
                 return 0;
             }
-            return mLineageHwImpl.getLtoDownloadInterval();
+            return mExecutor.call(LineageHardwareManager.FEATURE_LONG_TERM_ORBITS,
+                    "getLtoDownloadInterval", new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return mLineageHwImpl.getLtoDownloadInterval();
+                }
+            }, 0L);
         }
 
         @Override
@@ -590,7 +1127,13 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Serial number is not supported");
                 return null;
             }
-            return mLineageHwImpl.getSerialNumber();
+            return mExecutor.call(LineageHardwareManager.FEATURE_SERIAL_NUMBER,
+                    "getSerialNumber", new Callable<String>() {
+                @Override
+                public String call() {
+                    return mLineageHwImpl.getSerialNumber();
+                }
+            }, null, HardwareExecutor.FAILS_ON_NULL);
         }
 
         @Override
@@ -601,7 +1144,13 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Sunlight enhancement is not supported");
                 return false;
             }
-            return mLineageHwImpl.requireAdaptiveBacklightForSunlightEnhancement();
+            return mExecutor.call(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT,
+                    "requireAdaptiveBacklightForSunlightEnhancement", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return mLineageHwImpl.requireAdaptiveBacklightForSunlightEnhancement();
+                }
+            }, false);
         }
 
         @Override
@@ -612,7 +1161,13 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Sunlight enhancement is not supported");
                 return false;
             }
-            return mLineageHwImpl.isSunlightEnhancementSelfManaged();
+            return mExecutor.call(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT,
+                    "isSunlightEnhancementSelfManaged", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return mLineageHwImpl.isSunlightEnhancementSelfManaged();
+                }
+            }, false);
         }
 
         @Override
@@ -623,18 +1178,23 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Display modes are not supported");
                 return null;
             }
-            final DisplayMode[] modes = mLineageHwImpl.getDisplayModes();
-            if (modes == null) {
-                return null;
+            DisplayMode[] modes = mDisplayModes;
+            if (modes != null) {
+                return modes;
             }
-            final ArrayList<DisplayMode> remapped = new ArrayList<DisplayMode>();
-            for (DisplayMode mode : modes) {
-                DisplayMode r = remapDisplayMode(mode);
-                if (r != null) {
-                    remapped.add(r);
+            modes = mDisplayModeMappings.remap(mExecutor.call(
+                    LineageHardwareManager.FEATURE_DISPLAY_MODES,
+                    "getDisplayModes", new Callable<DisplayMode[]>() {
+                @Override
+                public DisplayMode[] call() {
+                    return mLineageHwImpl.getDisplayModes();
                 }
+            }, null, HardwareExecutor.FAILS_ON_NULL));
+            if (modes != null && modes.length > 0) {
+                // Don't cache failures or a not yet initialized hardware
+                mDisplayModes = modes;
             }
-            return remapped.toArray(new DisplayMode[remapped.size()]);
+            return modes;
         }
 
         @Override
@@ -645,7 +1205,13 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Display modes are not supported");
                 return null;
             }
-            return remapDisplayMode(mLineageHwImpl.getCurrentDisplayMode());
+            return remapDisplayMode(mExecutor.call(LineageHardwareManager.FEATURE_DISPLAY_MODES,
+                    "getCurrentDisplayMode", new Callable<DisplayMode>() {
+                @Override
+                public DisplayMode call() {
+                    return mLineageHwImpl.getCurrentDisplayMode();
+                }
+            }, null, HardwareExecutor.FAILS_ON_NULL));
         }
 
         @Override
@@ -656,18 +1222,34 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Display modes are not supported");
                 return null;
             }
-            return remapDisplayMode(mLineageHwImpl.getDefaultDisplayMode());
+            return remapDisplayMode(mExecutor.call(LineageHardwareManager.FEATURE_DISPLAY_MODES,
+                    "getDefaultDisplayMode", new Callable<DisplayMode>() {
+                @Override
+                public DisplayMode call() {
+                    return mLineageHwImpl.getDefaultDisplayMode();
+                }
+            }, null, HardwareExecutor.FAILS_ON_NULL));
         }
 
         @Override
-        public boolean setDisplayMode(DisplayMode mode, boolean makeDefault) {
+        public boolean setDisplayMode(final DisplayMode mode, final boolean makeDefault) {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (!isSupported(LineageHardwareManager.FEATURE_DISPLAY_MODES)) {
                 Log.e(TAG, "Display modes are not supported");
                 return false;
             }
-            return mLineageHwImpl.setDisplayMode(mode, makeDefault);
+            return mExecutor.call(LineageHardwareManager.FEATURE_DISPLAY_MODES,
+                    "setDisplayMode", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    if (!mLineageHwImpl.setDisplayMode(mode, makeDefault)) {
+                        return false;
+                    }
+                    postDisplayMode(remapDisplayMode(mLineageHwImpl.getCurrentDisplayMode()));
+                    return true;
+                }
+            }, false, HardwareExecutor.FAILS_ON_FALSE);
         }
 
         @Override
@@ -675,7 +1257,13 @@ public class LineageHardwareService extends LineageSystemService {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (isSupported(LineageHardwareManager.FEATURE_COLOR_BALANCE)) {
-                return mLineageHwImpl.getColorBalanceMin();
+                return mExecutor.call(LineageHardwareManager.FEATURE_COLOR_BALANCE,
+                        "getColorBalanceMin", new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return mLineageHwImpl.getColorBalanceMin();
+                    }
+                }, 0);
             }
             return 0;
         }
@@ -685,7 +1273,13 @@ public class LineageHardwareService extends LineageSystemService {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (isSupported(LineageHardwareManager.FEATURE_COLOR_BALANCE)) {
-                return mLineageHwImpl.getColorBalanceMax();
+                return mExecutor.call(LineageHardwareManager.FEATURE_COLOR_BALANCE,
+                        "getColorBalanceMax", new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return mLineageHwImpl.getColorBalanceMax();
+                    }
+                }, 0);
             }
             return 0;
         }
@@ -695,17 +1289,29 @@ public class LineageHardwareService extends LineageSystemService {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (isSupported(LineageHardwareManager.FEATURE_COLOR_BALANCE)) {
-                return mLineageHwImpl.getColorBalance();
+                return mExecutor.call(LineageHardwareManager.FEATURE_COLOR_BALANCE,
+                        "getColorBalance", new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return mLineageHwImpl.getColorBalance();
+                    }
+                }, 0);
             }
             return 0;
         }
 
         @Override
-        public boolean setColorBalance(int value) {
+        public boolean setColorBalance(final int value) {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (isSupported(LineageHardwareManager.FEATURE_COLOR_BALANCE)) {
-                return mLineageHwImpl.setColorBalance(value);
+                return mExecutor.call(LineageHardwareManager.FEATURE_COLOR_BALANCE,
+                        "setColorBalance", new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return mLineageHwImpl.setColorBalance(value);
+                    }
+                }, false, HardwareExecutor.FAILS_ON_FALSE);
             }
             return false;
         }
@@ -715,7 +1321,13 @@ public class LineageHardwareService extends LineageSystemService {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (isSupported(LineageHardwareManager.FEATURE_PICTURE_ADJUSTMENT)) {
-                return mLineageHwImpl.getPictureAdjustment();
+                return mExecutor.call(LineageHardwareManager.FEATURE_PICTURE_ADJUSTMENT,
+                        "getPictureAdjustment", new Callable<HSIC>() {
+                    @Override
+                    public HSIC call() {
+                        return mLineageHwImpl.getPictureAdjustment();
+                    }
+                }, new HSIC(0.0f, 0.0f, 0.0f, 0.0f, 0.0f), HardwareExecutor.FAILS_ON_NULL);
             }
             return new HSIC(0.0f, 0.0f, 0.0f, 0.0f, 0.0f);
         }
@@ -725,17 +1337,29 @@ public class LineageHardwareService extends LineageSystemService {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (isSupported(LineageHardwareManager.FEATURE_PICTURE_ADJUSTMENT)) {
-                return mLineageHwImpl.getDefaultPictureAdjustment();
+                return mExecutor.call(LineageHardwareManager.FEATURE_PICTURE_ADJUSTMENT,
+                        "getDefaultPictureAdjustment", new Callable<HSIC>() {
+                    @Override
+                    public HSIC call() {
+                        return mLineageHwImpl.getDefaultPictureAdjustment();
+                    }
+                }, new HSIC(0.0f, 0.0f, 0.0f, 0.0f, 0.0f), HardwareExecutor.FAILS_ON_NULL);
             }
             return new HSIC(0.0f, 0.0f, 0.0f, 0.0f, 0.0f);
         }
 
         @Override
-        public boolean setPictureAdjustment(HSIC hsic) {
+        public boolean setPictureAdjustment(final HSIC hsic) {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (isSupported(LineageHardwareManager.FEATURE_PICTURE_ADJUSTMENT) && hsic != null) {
-                return mLineageHwImpl.setPictureAdjustment(hsic);
+                return mExecutor.call(LineageHardwareManager.FEATURE_PICTURE_ADJUSTMENT,
+                        "setPictureAdjustment", new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return mLineageHwImpl.setPictureAdjustment(hsic);
+                    }
+                }, false, HardwareExecutor.FAILS_ON_FALSE);
             }
             return false;
         }
@@ -745,7 +1369,17 @@ public class LineageHardwareService extends LineageSystemService {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (isSupported(LineageHardwareManager.FEATURE_PICTURE_ADJUSTMENT)) {
-                final List<Range<Float>> r = mLineageHwImpl.getPictureAdjustmentRanges();
+                final List<Range<Float>> r = mExecutor.call(
+                        LineageHardwareManager.FEATURE_PICTURE_ADJUSTMENT,
+                        "getPictureAdjustmentRanges", new Callable<List<Range<Float>>>() {
+                    @Override
+                    public List<Range<Float>> call() {
+                        return mLineageHwImpl.getPictureAdjustmentRanges();
+                    }
+                }, null, HardwareExecutor.FAILS_ON_NULL);
+                if (r == null) {
+                    return new float[10];
+                }
                 return new float[] {
                         r.get(0).getLower(), r.get(0).getUpper(),
                         r.get(1).getLower(), r.get(1).getUpper(),
@@ -764,18 +1398,87 @@ public class LineageHardwareService extends LineageSystemService {
                 Log.e(TAG, "Touchscreen gestures are not supported");
                 return null;
             }
-            return mLineageHwImpl.getTouchscreenGestures();
+            return mExecutor.call(LineageHardwareManager.FEATURE_TOUCHSCREEN_GESTURES,
+                    "getTouchscreenGestures", new Callable<TouchscreenGesture[]>() {
+                @Override
+                public TouchscreenGesture[] call() {
+                    return mLineageHwImpl.getTouchscreenGestures();
+                }
+            }, null, HardwareExecutor.FAILS_ON_NULL);
         }
 
         @Override
-        public boolean setTouchscreenGestureEnabled(TouchscreenGesture gesture, boolean state) {
+        public boolean setTouchscreenGestureEnabled(final TouchscreenGesture gesture,
+                final boolean state) {
             mContext.enforceCallingOrSelfPermission(
                     lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
             if (!isSupported(LineageHardwareManager.FEATURE_TOUCHSCREEN_GESTURES)) {
                 Log.e(TAG, "Touchscreen gestures are not supported");
                 return false;
             }
-            return mLineageHwImpl.setTouchscreenGestureEnabled(gesture, state);
+            return mExecutor.call(LineageHardwareManager.FEATURE_TOUCHSCREEN_GESTURES,
+                    "setTouchscreenGestureEnabled", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return mLineageHwImpl.setTouchscreenGestureEnabled(gesture, state);
+                }
+            }, false, HardwareExecutor.FAILS_ON_FALSE);
+        }
+
+        @Override
+        public HardwareCapabilities getCapabilities() {
+            mContext.enforceCallingOrSelfPermission(
+                    lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            return LineageHardwareService.this.getCapabilities();
+        }
+
+        @Override
+        public void registerStateListener(IHardwareStateListener listener) {
+            mContext.enforceCallingOrSelfPermission(
+                    lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            if (listener != null && mStateListeners.register(listener)) {
+                mHandler.post(mUpdateStateObservers);
+            }
+        }
+
+        @Override
+        public void unregisterStateListener(IHardwareStateListener listener) {
+            mContext.enforceCallingOrSelfPermission(
+                    lineageos.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            if (listener != null && mStateListeners.unregister(listener)) {
+                mHandler.post(mUpdateStateObservers);
+            }
+        }
+
+        @Override
+        public Bundle getCallStatistics() {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+            final Bundle stats = mExecutor.getStatistics();
+            synchronized (mCalibrationLock) {
+                stats.putLong("colorCalibrationFramesWritten", mCalibrationFramesWritten);
+                stats.putLong("colorCalibrationFramesSkipped", mCalibrationFramesSkipped);
+                stats.putLong("colorCalibrationFramesFailed", mCalibrationFramesFailed);
+            }
+            return stats;
+        }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("LineageHardwareService State:");
+            pw.println("  Supported features: 0x"
+                    + Integer.toHexString(mLineageHwImpl.getSupportedFeatures()));
+            pw.println("  Capabilities: " + LineageHardwareService.this.getCapabilities());
+            pw.println("  State listeners: " + mStateListeners.getRegisteredCallbackCount());
+            synchronized (mCalibrationLock) {
+                pw.println("  Color calibration frames: written=" + mCalibrationFramesWritten
+                        + " skipped=" + mCalibrationFramesSkipped
+                        + " failed=" + mCalibrationFramesFailed
+                        + " interval=" + mCalibrationWriteIntervalMs + "ms");
+            }
+            mExecutor.dump(pw);
         }
     };
 }
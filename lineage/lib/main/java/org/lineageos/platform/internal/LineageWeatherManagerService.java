@@ -16,6 +16,7 @@
 
 package org.lineageos.platform.internal;
 
+import android.app.AlarmManager;
 import android.app.AppGlobals;
 import android.content.ComponentName;
 import android.content.ContentValues;
@@ -26,13 +27,18 @@ import android.content.pm.IPackageManager;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.ContentObserver;
+import android.location.Location;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.LruCache;
 import android.util.Slog;
 import com.android.internal.content.PackageMonitor;
 import com.android.internal.os.BackgroundThread;
@@ -47,24 +53,90 @@ import lineageos.weather.IRequestInfoListener;
 import lineageos.weather.IWeatherServiceProviderChangeListener;
 import lineageos.weather.RequestInfo;
 import lineageos.weather.WeatherInfo;
+import lineageos.weather.WeatherLocation;
 import lineageos.weatherservice.IWeatherProviderService;
 import lineageos.weatherservice.IWeatherProviderServiceClient;
 import lineageos.weatherservice.ServiceRequestResult;
+import org.lineageos.internal.util.InFlightRequests;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class LineageWeatherManagerService extends LineageSystemService {
 
     private static final String TAG = LineageWeatherManagerService.class.getSimpleName();
 
     private IWeatherProviderService mWeatherProviderService;
-    private boolean mIsWeatherProviderServiceBound;
+    private volatile boolean mIsWeatherProviderServiceBound;
     private Object mMutex = new Object();
     private Context mContext;
     private final RemoteCallbackList<IWeatherServiceProviderChangeListener> mProviderChangeListeners
             = new RemoteCallbackList<>();
     private volatile boolean mReconnectedDuePkgModified = false;
+    private final WeatherCache mWeatherCache;
+
+    // Requests received while the provider service is being bound
+    private static final int MAX_PENDING_REQUESTS = 32;
+    private static final long PENDING_REQUEST_TIMEOUT_MS = 30 * 1000;
+
+    // A provider that never reports back must not hold identical requests forever
+    private static final long IN_FLIGHT_REQUEST_TIMEOUT_MS = 60 * 1000;
+    // Guarded by mMutex
+    private final InFlightRequests<RequestInfo> mInFlightRequests =
+            new InFlightRequests<>(IN_FLIGHT_REQUEST_TIMEOUT_MS);
+
+    // Rows last written to the weather content provider, guarded by mMutex
+    private ContentValues[] mLastWrittenWeather;
+    private int mWeatherWrites;
+    private int mSkippedWeatherWrites;
+
+    // City lookup results of the active provider, keyed by provider and normalized query
+    private static final int MAX_CITY_LOOKUP_CACHE_ENTRIES = 32;
+    private final LruCache<String, List<WeatherLocation>> mCityLookupCache =
+            new LruCache<>(MAX_CITY_LOOKUP_CACHE_ENTRIES);
+    private volatile String mActiveProviderComponent;
+
+    private final PendingRequestQueue mPendingRequests = new PendingRequestQueue();
+
+    // Periodic weather update subscriptions, keyed by request ID
+    private static final long MIN_FRESHNESS_WINDOW_MS = 15 * 60 * 1000;
+    // Subscriptions due within a quarter of their window are refreshed along with the others
+    private static final int REFRESH_ALIGNMENT_DIVISOR = 4;
+    private final ArrayMap<Integer, WeatherSubscription> mSubscriptions = new ArrayMap<>();
+    private AlarmManager mAlarmManager;
+    private long mNextScheduledRefresh = -1;
+    private int mRefreshBatches;
+    private int mRefreshedSubscriptions;
+
+    private final class WeatherSubscription implements IBinder.DeathRecipient {
+        final RequestInfo requestInfo;
+        final long freshnessWindow;
+        long lastRefresh;
+
+        WeatherSubscription(RequestInfo requestInfo_, long freshnessWindow_) {
+            requestInfo = requestInfo_;
+            freshnessWindow = freshnessWindow_;
+        }
+
+        long getAlignmentSlack() {
+            return freshnessWindow / REFRESH_ALIGNMENT_DIVISOR;
+        }
+
+        @Override
+        public void binderDied() {
+            removeSubscription(requestInfo.hashCode());
+        }
+    }
+    private final Handler mHandler = BackgroundThread.getHandler();
 
     private final IWeatherProviderServiceClient mServiceClient
             = new IWeatherProviderServiceClient.Stub() {
@@ -89,6 +161,8 @@ public class LineageWeatherManagerService extends LineageSystemService {
                 switch (requestType) {
                     case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
                     case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                        final List<RequestInfo> requests = mInFlightRequests.complete(
+                                WeatherCache.getKey(requestInfo), requestInfo);
                         WeatherInfo weatherInfo = null;
                         if (status == LineageWeatherManager.RequestStatus.COMPLETED) {
                             weatherInfo = (result != null) ? result.getWeatherInfo() : null;
@@ -98,25 +172,47 @@ public class LineageWeatherManagerService extends LineageSystemService {
                                 //was marked as completed
                                 status = LineageWeatherManager.RequestStatus.FAILED;
                             } else {
-                                if (!requestInfo.isQueryOnlyWeatherRequest()) {
+                                boolean queryOnly = true;
+                                for (RequestInfo request : requests) {
+                                    queryOnly &= request.isQueryOnlyWeatherRequest();
+                                }
+                                // Only a successful write counts as stored, so a failed one
+                                // is retried by the next update served from the cache
+                                boolean stored = false;
+                                if (!queryOnly) {
                                     final long identity = Binder.clearCallingIdentity();
                                     try {
-                                        updateWeatherInfoLocked(weatherInfo);
+                                        stored = updateWeatherInfoLocked(weatherInfo);
                                     } finally {
                                         Binder.restoreCallingIdentity(identity);
                                     }
                                 }
+                                mWeatherCache.put(WeatherCache.getKey(requestInfo), weatherInfo,
+                                        stored);
                             }
                         }
-                        if (isValidListener(listener)) {
-                            try {
-                                listener.onWeatherRequestCompleted(requestInfo, status,
-                                        weatherInfo);
-                            } catch (RemoteException e) {
+                        for (RequestInfo request : requests) {
+                            final IRequestInfoListener requestListener =
+                                    request.getRequestListener();
+                            if (isValidListener(requestListener)) {
+                                try {
+                                    requestListener.onWeatherRequestCompleted(request, status,
+                                            weatherInfo != null ? weatherInfo.withCompactForecasts(
+                                                    request.supportsCompactForecasts()) : null);
+                                } catch (RemoteException e) {
+                                }
                             }
                         }
                         break;
                     case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
+                        if (status == LineageWeatherManager.RequestStatus.COMPLETED
+                                && result != null && result.getLocationLookupList() != null) {
+                            final String key = getCityLookupKey(requestInfo);
+                            if (key != null) {
+                                mCityLookupCache.put(key, Collections.unmodifiableList(
+                                        new ArrayList<>(result.getLocationLookupList())));
+                            }
+                        }
                         if (isValidListener(listener)) {
                             try {
                                 //Result might be null if the provider marked the request as failed
@@ -203,6 +299,60 @@ public class LineageWeatherManagerService extends LineageSystemService {
             enforcePermission();
             processCancelRequest(requestId);
         }
+
+        @Override
+        public void subscribeWeatherUpdates(RequestInfo info, long freshnessWindowMs) {
+            enforcePermission();
+            addSubscription(info, freshnessWindowMs);
+        }
+
+        @Override
+        public void unsubscribeWeatherUpdates(int requestId) {
+            enforcePermission();
+            removeSubscription(requestId);
+        }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("LineageWeatherManager Service State:");
+            pw.println();
+            pw.println(" Provider bound: " + mIsWeatherProviderServiceBound);
+            synchronized (mMutex) {
+                pw.println(" In-flight weather requests: " + mInFlightRequests.size());
+                pw.println(" Coalesced weather requests: "
+                        + mInFlightRequests.getCoalescedCount());
+                pw.println(" Weather provider writes: " + mWeatherWrites
+                        + " (skipped unchanged: " + mSkippedWeatherWrites + ")");
+            }
+            pw.println();
+            synchronized (mPendingRequests) {
+                mPendingRequests.dump(pw);
+            }
+            synchronized (mSubscriptions) {
+                final long now = SystemClock.elapsedRealtime();
+                pw.println("Weather update subscriptions:");
+                pw.println("  Refresh batches: " + mRefreshBatches
+                        + " Refreshed subscriptions: " + mRefreshedSubscriptions);
+                if (mNextScheduledRefresh >= 0) {
+                    pw.println("  Next refresh in: " + (mNextScheduledRefresh - now) + "ms");
+                }
+                for (WeatherSubscription subscription : mSubscriptions.values()) {
+                    pw.println("  " + subscription.requestInfo.hashCode()
+                            + ": window=" + subscription.freshnessWindow
+                            + "ms age=" + (now - subscription.lastRefresh) + "ms");
+                }
+                pw.println();
+            }
+            mWeatherCache.dump(pw);
+            pw.println("City lookup cache:");
+            pw.println("  Size: " + mCityLookupCache.size() + "/" + mCityLookupCache.maxSize());
+            pw.println("  Hits: " + mCityLookupCache.hitCount()
+                    + " Misses: " + mCityLookupCache.missCount());
+            pw.println();
+        }
     };
 
     private String getComponentLabel(ComponentName componentName) {
@@ -219,6 +369,8 @@ public class LineageWeatherManagerService extends LineageSystemService {
     public LineageWeatherManagerService(Context context) {
         super(context);
         mContext = context;
+        mWeatherCache = new WeatherCache(context.getResources().getInteger(
+                org.lineageos.platform.internal.R.integer.config_weatherCacheTtlMs));
     }
 
     @Override
@@ -228,6 +380,7 @@ public class LineageWeatherManagerService extends LineageSystemService {
 
     @Override
     public void onStart() {
+        mAlarmManager = mContext.getSystemService(AlarmManager.class);
         publishBinderService(LineageContextConstants.LINEAGE_WEATHER_SERVICE, mService);
         registerPackageMonitor();
         registerSettingsObserver();
@@ -253,6 +406,7 @@ public class LineageWeatherManagerService extends LineageSystemService {
                     mWeatherServiceProviderConnection, Context.BIND_AUTO_CREATE,
                     UserHandle.CURRENT)) {
                 Slog.w(TAG, "Failed to bind service " + activeProviderService);
+                failPendingRequests();
             }
         }
     }
@@ -260,6 +414,7 @@ public class LineageWeatherManagerService extends LineageSystemService {
     private boolean canProcessWeatherUpdateRequest(RequestInfo info) {
         final IRequestInfoListener listener = info.getRequestListener();
 
+        if (!mIsWeatherProviderServiceBound && queuePendingRequest(info)) return false;
         if (!mIsWeatherProviderServiceBound) {
             if (listener != null && listener.asBinder().pingBinder()) {
                 try {
@@ -273,15 +428,247 @@ public class LineageWeatherManagerService extends LineageSystemService {
         return true;
     }
 
+    private boolean processCachedWeatherUpdateRequest(RequestInfo info) {
+        final WeatherCache.Entry entry = mWeatherCache.get(WeatherCache.getKey(info));
+        if (entry == null) return false;
+
+        if (!info.isQueryOnlyWeatherRequest()) {
+            synchronized (mMutex) {
+                // The cached result might come from a query only request, in which case it
+                // was never written to the content provider
+                if (!entry.stored) {
+                    final long identity = Binder.clearCallingIdentity();
+                    try {
+                        entry.stored = updateWeatherInfoLocked(entry.weatherInfo);
+                    } finally {
+                        Binder.restoreCallingIdentity(identity);
+                    }
+                }
+            }
+        }
+
+        final IRequestInfoListener listener = info.getRequestListener();
+        if (isValidListener(listener)) {
+            try {
+                listener.onWeatherRequestCompleted(info,
+                        LineageWeatherManager.RequestStatus.COMPLETED,
+                        entry.weatherInfo.withCompactForecasts(info.supportsCompactForecasts()));
+            } catch (RemoteException e) {
+            }
+        }
+        return true;
+    }
+
     private synchronized void processWeatherUpdateRequest(RequestInfo info) {
+        if (processCachedWeatherUpdateRequest(info)) return;
         if (!canProcessWeatherUpdateRequest(info)) return;
+
+        final String key = WeatherCache.getKey(info);
+        if (key != null) {
+            synchronized (mMutex) {
+                if (!mInFlightRequests.begin(key, info, SystemClock.elapsedRealtime())) {
+                    //Same location is already being fetched, wait for that result
+                    return;
+                }
+            }
+        }
+
         try {
             mWeatherProviderService.processWeatherUpdateRequest(info);
         } catch (RemoteException e) {
+            if (key != null) {
+                final List<RequestInfo> waiters;
+                synchronized (mMutex) {
+                    waiters = new ArrayList<>(mInFlightRequests.abort(key, info));
+                }
+                failRequests(waiters);
+            }
+        }
+    }
+
+    private void addSubscription(RequestInfo info, long freshnessWindow) {
+        final IRequestInfoListener listener = info.getRequestListener();
+        if (listener == null) return;
+
+        final WeatherSubscription subscription = new WeatherSubscription(info,
+                Math.max(freshnessWindow, MIN_FRESHNESS_WINDOW_MS));
+        try {
+            listener.asBinder().linkToDeath(subscription, 0);
+        } catch (RemoteException e) {
+            return;
+        }
+        synchronized (mSubscriptions) {
+            final WeatherSubscription old = mSubscriptions.put(info.hashCode(), subscription);
+            if (old != null) {
+                old.requestInfo.getRequestListener().asBinder().unlinkToDeath(old, 0);
+            }
+            subscription.lastRefresh = SystemClock.elapsedRealtime();
+            scheduleRefreshLocked();
         }
+        //New subscribers get the current weather right away
+        processWeatherUpdateRequest(info);
+    }
+
+    private void removeSubscription(int requestId) {
+        synchronized (mSubscriptions) {
+            final WeatherSubscription subscription = mSubscriptions.remove(requestId);
+            if (subscription == null) return;
+            subscription.requestInfo.getRequestListener().asBinder()
+                    .unlinkToDeath(subscription, 0);
+            scheduleRefreshLocked();
+        }
+    }
+
+    /**
+     * Schedules a single alarm for all the subscriptions. The alarm can go off anywhere within
+     * the alignment slack of the subscription due first, so the system can batch it with
+     * other alarms.
+     */
+    private void scheduleRefreshLocked() {
+        mAlarmManager.cancel(mRefreshAlarmListener);
+        if (mSubscriptions.isEmpty()) {
+            mNextScheduledRefresh = -1;
+            return;
+        }
+
+        long nextRefresh = Long.MAX_VALUE;
+        long slack = Long.MAX_VALUE;
+        for (WeatherSubscription subscription : mSubscriptions.values()) {
+            nextRefresh = Math.min(nextRefresh,
+                    subscription.lastRefresh + subscription.freshnessWindow);
+            slack = Math.min(slack, subscription.getAlignmentSlack());
+        }
+        mNextScheduledRefresh = nextRefresh;
+        mAlarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, nextRefresh - slack, slack,
+                TAG, mRefreshAlarmListener, mHandler);
+    }
+
+    private final AlarmManager.OnAlarmListener mRefreshAlarmListener =
+            new AlarmManager.OnAlarmListener() {
+        @Override
+        public void onAlarm() {
+            refreshSubscriptions();
+        }
+    };
+
+    private void refreshSubscriptions() {
+        final List<RequestInfo> dueRequests = new ArrayList<>();
+        synchronized (mSubscriptions) {
+            final long now = SystemClock.elapsedRealtime();
+            for (WeatherSubscription subscription : mSubscriptions.values()) {
+                //Refresh the ones close to expire too, so they don't need a wakeup of their own
+                if (now >= subscription.lastRefresh + subscription.freshnessWindow
+                        - subscription.getAlignmentSlack()) {
+                    dueRequests.add(subscription.requestInfo);
+                    subscription.lastRefresh = now;
+                }
+            }
+            if (!dueRequests.isEmpty()) {
+                mRefreshBatches++;
+                mRefreshedSubscriptions += dueRequests.size();
+            }
+            scheduleRefreshLocked();
+        }
+        for (RequestInfo info : dueRequests) {
+            processWeatherUpdateRequest(info);
+        }
+    }
+
+    /**
+     * Holds a request until the provider service is connected, as long as a provider is set
+     * and can still be bound. Returns false if the request has to be handled by the caller,
+     * either because the provider got connected meanwhile or because it can't be queued.
+     */
+    private boolean queuePendingRequest(RequestInfo info) {
+        final boolean queued;
+        synchronized (mPendingRequests) {
+            if (mIsWeatherProviderServiceBound) return false;
+            if (LineageSettings.Secure.getString(mContext.getContentResolver(),
+                    LineageSettings.Secure.WEATHER_PROVIDER_SERVICE) == null) {
+                return false;
+            }
+            queued = mPendingRequests.offer(info, SystemClock.elapsedRealtime());
+            if (queued && mPendingRequests.size() == 1) {
+                mHandler.postDelayed(mExpirePendingRequests, PENDING_REQUEST_TIMEOUT_MS);
+            }
+        }
+        if (!queued) {
+            Slog.w(TAG, "Too many requests waiting for the weather provider, dropping " + info);
+        }
+        return queued;
+    }
+
+    private final Runnable mExpirePendingRequests = new Runnable() {
+        @Override
+        public void run() {
+            final List<RequestInfo> expired;
+            synchronized (mPendingRequests) {
+                final long now = SystemClock.elapsedRealtime();
+                expired = mPendingRequests.expire(now - PENDING_REQUEST_TIMEOUT_MS);
+                final long oldest = mPendingRequests.getOldestTimestamp();
+                if (oldest >= 0) {
+                    mHandler.postDelayed(this, oldest + PENDING_REQUEST_TIMEOUT_MS - now);
+                }
+            }
+            failRequests(expired);
+        }
+    };
+
+    private void failPendingRequests() {
+        final List<RequestInfo> requests;
+        synchronized (mPendingRequests) {
+            mHandler.removeCallbacks(mExpirePendingRequests);
+            requests = mPendingRequests.expire(Long.MAX_VALUE);
+        }
+        failRequests(requests);
+    }
+
+    private void failRequests(List<RequestInfo> requests) {
+        for (RequestInfo info : requests) {
+            final IRequestInfoListener listener = info.getRequestListener();
+            if (!isValidListener(listener)) continue;
+            try {
+                if (info.getRequestType() == RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ) {
+                    listener.onLookupCityRequestCompleted(info,
+                            LineageWeatherManager.RequestStatus.FAILED, null);
+                } else {
+                    listener.onWeatherRequestCompleted(info,
+                            LineageWeatherManager.RequestStatus.FAILED, null);
+                }
+            } catch (RemoteException e) {
+            }
+        }
+    }
+
+    private String getCityLookupKey(RequestInfo info) {
+        final String provider = mActiveProviderComponent;
+        final String cityName = info.getCityName();
+        if (provider == null || cityName == null) return null;
+
+        //Searches are typed by the user, ignore case and spacing differences
+        final String query = cityName.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        return provider + "/" + query;
+    }
+
+    private boolean processCachedCityNameLookupRequest(RequestInfo info) {
+        final String key = getCityLookupKey(info);
+        final List<WeatherLocation> locations = key != null ? mCityLookupCache.get(key) : null;
+        if (locations == null) return false;
+
+        final IRequestInfoListener listener = info.getRequestListener();
+        if (isValidListener(listener)) {
+            try {
+                listener.onLookupCityRequestCompleted(info,
+                        LineageWeatherManager.RequestStatus.COMPLETED, locations);
+            } catch (RemoteException e) {
+            }
+        }
+        return true;
     }
 
     private void processCityNameLookupRequest(RequestInfo info) {
+        if (processCachedCityNameLookupRequest(info)) return;
+        if (!mIsWeatherProviderServiceBound && queuePendingRequest(info)) return;
         if (!mIsWeatherProviderServiceBound) {
             final IRequestInfoListener listener = info.getRequestListener();
             if (listener != null && listener.asBinder().pingBinder()) {
@@ -300,6 +687,12 @@ public class LineageWeatherManagerService extends LineageSystemService {
     }
 
     private void processCancelRequest(int requestId) {
+        synchronized (mPendingRequests) {
+            if (mPendingRequests.remove(requestId)) return;
+        }
+        synchronized (mMutex) {
+            if (!mInFlightRequests.cancel(requestId)) return;
+        }
         if (mIsWeatherProviderServiceBound) {
             try {
                 mWeatherProviderService.cancelRequest(requestId);
@@ -312,15 +705,28 @@ public class LineageWeatherManagerService extends LineageSystemService {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             mWeatherProviderService = IWeatherProviderService.Stub.asInterface(service);
-            mIsWeatherProviderServiceBound = true;
+            mActiveProviderComponent = name.flattenToString();
             try {
                 mWeatherProviderService.setServiceClient(mServiceClient);
             } catch(RemoteException e) {
             }
+            final List<RequestInfo> pendingRequests;
+            synchronized (mPendingRequests) {
+                mIsWeatherProviderServiceBound = true;
+                mHandler.removeCallbacks(mExpirePendingRequests);
+                pendingRequests = mPendingRequests.drain();
+            }
             if (!mReconnectedDuePkgModified) {
                 notifyProviderChanged(name);
             }
             mReconnectedDuePkgModified = false;
+            for (RequestInfo info : pendingRequests) {
+                if (info.getRequestType() == RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ) {
+                    processCityNameLookupRequest(info);
+                } else {
+                    processWeatherUpdateRequest(info);
+                }
+            }
         }
 
         @Override
@@ -376,12 +782,21 @@ public class LineageWeatherManagerService extends LineageSystemService {
         }
 
         ContentValues[] updateValues = new ContentValues[contentValuesList.size()];
+        contentValuesList.toArray(updateValues);
+        if (Arrays.equals(updateValues, mLastWrittenWeather)) {
+            //Nothing changed, spare the observers of the weather provider a notification
+            mSkippedWeatherWrites++;
+            return true;
+        }
+
+        mLastWrittenWeather = null;
         if (size != getContext().getContentResolver().bulkInsert(
-                WeatherColumns.CURRENT_AND_FORECAST_WEATHER_URI,
-                contentValuesList.toArray(updateValues))) {
+                WeatherColumns.CURRENT_AND_FORECAST_WEATHER_URI, updateValues)) {
             Slog.w(TAG, "Failed to update the weather content provider");
             return false;
         }
+        mLastWrittenWeather = updateValues;
+        mWeatherWrites++;
         return true;
     }
 
@@ -484,11 +899,15 @@ public class LineageWeatherManagerService extends LineageSystemService {
                     String activeSrvc = LineageSettings.Secure.getString(mContext.getContentResolver(),
                             LineageSettings.Secure.WEATHER_PROVIDER_SERVICE);
                     disconnectClient();
-                    if (activeSrvc != null) {
+                    if (activeSrvc == null) {
+                        failPendingRequests();
+                    } else {
                         ComponentName cn = ComponentName.unflattenFromString(activeSrvc);
-                        getContext().bindServiceAsUser(new Intent().setComponent(cn),
+                        if (!getContext().bindServiceAsUser(new Intent().setComponent(cn),
                                 mWeatherServiceProviderConnection, Context.BIND_AUTO_CREATE,
-                                UserHandle.CURRENT);
+                                UserHandle.CURRENT)) {
+                            failPendingRequests();
+                        }
                     }
                 }
             }
@@ -498,6 +917,14 @@ public class LineageWeatherManagerService extends LineageSystemService {
     }
 
     private synchronized void disconnectClient() {
+        //Results from the previous provider must not be served for the new one
+        mWeatherCache.clear();
+        mCityLookupCache.evictAll();
+        mActiveProviderComponent = null;
+        synchronized (mMutex) {
+            mInFlightRequests.clear();
+            mLastWrittenWeather = null;
+        }
         if (mIsWeatherProviderServiceBound) {
             //let's cancel any pending request
             try {
@@ -516,4 +943,182 @@ public class LineageWeatherManagerService extends LineageSystemService {
             mIsWeatherProviderServiceBound = false;
         }
     }
+
+    /**
+     * Keeps the weather results recently returned by the active provider, so requests for
+     * the same location made by different clients within the TTL don't reach the provider.
+     */
+    private static final class WeatherCache {
+        private static final int MAX_ENTRIES = 16;
+        // Coordinates are quantized to two decimal places, roughly 1 km
+        private static final double LOCATION_QUANTUM = 100d;
+
+        static final class Entry {
+            final WeatherInfo weatherInfo;
+            final long timestamp;
+            // Whether the result was written to the weather content provider
+            boolean stored;
+
+            Entry(WeatherInfo weatherInfo_, long timestamp_, boolean stored_) {
+                weatherInfo = weatherInfo_;
+                timestamp = timestamp_;
+                stored = stored_;
+            }
+        }
+
+        private final LinkedHashMap<String, Entry> mEntries =
+                new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        private final long mTtl;
+        private int mHits;
+        private int mMisses;
+
+        WeatherCache(long ttl) {
+            mTtl = ttl;
+        }
+
+        static String getKey(RequestInfo info) {
+            final StringBuilder key = new StringBuilder();
+            switch (info.getRequestType()) {
+                case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+                    final Location location = info.getLocation();
+                    key.append("geo:")
+                            .append(Math.round(location.getLatitude() * LOCATION_QUANTUM))
+                            .append(',')
+                            .append(Math.round(location.getLongitude() * LOCATION_QUANTUM));
+                    break;
+                case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                    final WeatherLocation weatherLocation = info.getWeatherLocation();
+                    if (weatherLocation == null) return null;
+                    if (!TextUtils.isEmpty(weatherLocation.getCityId())) {
+                        key.append("id:").append(weatherLocation.getCityId());
+                    } else {
+                        key.append("city:").append(weatherLocation.getCity())
+                                .append('|').append(weatherLocation.getPostalCode())
+                                .append('|').append(weatherLocation.getCountryId());
+                    }
+                    break;
+                default:
+                    return null;
+            }
+            // Providers report the temperature in the requested unit
+            return key.append('/').append(info.getTemperatureUnit()).toString();
+        }
+
+        synchronized Entry get(String key) {
+            if (mTtl <= 0 || key == null) return null;
+
+            Entry entry = mEntries.get(key);
+            if (entry != null && SystemClock.elapsedRealtime() - entry.timestamp > mTtl) {
+                mEntries.remove(key);
+                entry = null;
+            }
+            if (entry != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+            return entry;
+        }
+
+        synchronized void put(String key, WeatherInfo weatherInfo, boolean stored) {
+            if (mTtl <= 0 || key == null) return;
+            mEntries.put(key, new Entry(weatherInfo, SystemClock.elapsedRealtime(), stored));
+        }
+
+        synchronized void clear() {
+            mEntries.clear();
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println("Weather cache:");
+            pw.println("  TTL: " + mTtl + "ms");
+            pw.println("  Hits: " + mHits + " Misses: " + mMisses);
+            final long now = SystemClock.elapsedRealtime();
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                pw.println("  " + entry.getKey() + ": age=" + (now - entry.getValue().timestamp)
+                        + "ms stored=" + entry.getValue().stored);
+            }
+            pw.println();
+        }
+    }
+
+    /**
+     * Bounded FIFO of requests waiting for the provider service to be connected.
+     * Not thread safe, callers synchronize on the queue.
+     */
+    private static final class PendingRequestQueue {
+        private final ArrayDeque<RequestInfo> mRequests = new ArrayDeque<>();
+        private final ArrayDeque<Long> mTimestamps = new ArrayDeque<>();
+        private int mMaxDepth;
+        private int mQueued;
+        private int mDrained;
+        private int mExpired;
+        private int mRejected;
+
+        boolean offer(RequestInfo info, long now) {
+            if (mRequests.size() >= MAX_PENDING_REQUESTS) {
+                mRejected++;
+                return false;
+            }
+            mRequests.add(info);
+            mTimestamps.add(now);
+            mQueued++;
+            mMaxDepth = Math.max(mMaxDepth, mRequests.size());
+            return true;
+        }
+
+        boolean remove(int requestId) {
+            final Iterator<RequestInfo> requests = mRequests.iterator();
+            final Iterator<Long> timestamps = mTimestamps.iterator();
+            while (requests.hasNext()) {
+                timestamps.next();
+                if (requests.next().hashCode() == requestId) {
+                    requests.remove();
+                    timestamps.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        List<RequestInfo> expire(long deadline) {
+            final List<RequestInfo> expired = new ArrayList<>();
+            while (!mTimestamps.isEmpty() && mTimestamps.peek() <= deadline) {
+                mTimestamps.poll();
+                expired.add(mRequests.poll());
+            }
+            mExpired += expired.size();
+            return expired;
+        }
+
+        List<RequestInfo> drain() {
+            final List<RequestInfo> requests = new ArrayList<>(mRequests);
+            mRequests.clear();
+            mTimestamps.clear();
+            mDrained += requests.size();
+            return requests;
+        }
+
+        long getOldestTimestamp() {
+            return mTimestamps.isEmpty() ? -1 : mTimestamps.peek();
+        }
+
+        int size() {
+            return mRequests.size();
+        }
+
+        void dump(PrintWriter pw) {
+            pw.println("Pending requests:");
+            pw.println("  Depth: " + mRequests.size() + " (max " + mMaxDepth
+                    + ", limit " + MAX_PENDING_REQUESTS + ")");
+            pw.println("  Queued: " + mQueued + " Drained: " + mDrained
+                    + " Expired: " + mExpired + " Rejected: " + mRejected);
+            pw.println();
+        }
+    }
 }
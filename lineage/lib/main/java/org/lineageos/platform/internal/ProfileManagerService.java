@@ -26,6 +26,9 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiSsid;
 import android.os.Message;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.ArraySet;
 import com.android.internal.policy.IKeyguardService;
 import lineageos.providers.LineageSettings;
@@ -55,19 +58,30 @@ import lineageos.app.LineageContextConstants;
 import lineageos.app.Profile;
 import lineageos.app.ProfileGroup;
 import lineageos.app.ProfileManager;
+import lineageos.app.ProfileSummary;
 import lineageos.app.IProfileManager;
+import lineageos.profiles.LockSettings;
 
 import java.util.Collection;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** @hide */
 public class ProfileManagerService extends LineageSystemService {
@@ -84,6 +98,12 @@ public class ProfileManagerService extends LineageSystemService {
 
     private static final int MSG_SEND_PROFILE_STATE = 10;
 
+    // Number of workers used to toggle independent radios while applying a profile
+    private static final int CONNECTION_WORKER_COUNT = 3;
+    private static final long CONNECTION_WORKER_KEEP_ALIVE_SECONDS = 30;
+    // Never matches a real Profile.LockMode, so the lock override gets applied
+    private static final int LOCK_MODE_UNKNOWN = -1;
+
     private Map<UUID, Profile> mProfiles;
 
     // Match UUIDs and names, used for reverse compatibility
@@ -105,6 +125,12 @@ public class ProfileManagerService extends LineageSystemService {
     private ProfileTriggerHelper mTriggerHelper;
     private Profile mEmptyProfile;
 
+    // Snapshot of the overrides last applied to the device, used to skip unchanged ones
+    private Profile mLastAppliedProfile;
+    private Profile.SelectStats mLastSelectStats;
+    private final ThreadPoolExecutor mConnectionExecutor;
+    private final SwitchLog mSwitchLog = new SwitchLog();
+
     private Runnable mBindKeyguard = new Runnable() {
         @Override
         public void run() {
@@ -117,6 +143,10 @@ public class ProfileManagerService extends LineageSystemService {
         public void onServiceConnected(ComponentName name, IBinder service) {
             if (LOCAL_LOGV) Log.v(TAG, "*** Keyguard connected (yay!)");
             mKeyguardService = IKeyguardService.Stub.asInterface(service);
+            // A new keyguard doesn't know about our lock override, force it on next apply
+            synchronized (ProfileManagerService.this) {
+                mLastAppliedProfile = null;
+            }
         }
 
         @Override
@@ -198,7 +228,7 @@ public class ProfileManagerService extends LineageSystemService {
             }
         }
 
-        if (selectProfile) mActiveProfile.doSelect(mContext, mKeyguardService);
+        if (selectProfile) reapplyActiveProfile(true, "profiles enabled");
     }
 
     private String getActiveSSID() {
@@ -233,6 +263,17 @@ public class ProfileManagerService extends LineageSystemService {
         super(context);
         mContext = context;
         mHandler = new Handler(mHandlerCallback);
+        mConnectionExecutor = new ThreadPoolExecutor(CONNECTION_WORKER_COUNT,
+                CONNECTION_WORKER_COUNT, CONNECTION_WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, TAG + "-connections-" + mCount.incrementAndGet());
+                    }
+                });
+        mConnectionExecutor.allowCoreThreadTimeOut(true);
         if (context.getPackageManager().hasSystemFeature(
                 LineageContextConstants.Features.PROFILES)) {
             publishBinderService(LineageContextConstants.LINEAGE_PROFILE_SERVICE, mService);
@@ -351,8 +392,9 @@ public class ProfileManagerService extends LineageSystemService {
              *   not included in the caller's permissions
              * - broadcast INTENT_ACTION_PROFILE_SELECTED
              */
+            final String cause = "setActiveProfileByName uid=" + getCallingUid();
             long token = clearCallingIdentity();
-            setActiveProfileInternal(mProfiles.get(mProfileNames.get(profileName)), true);
+            setActiveProfileInternal(mProfiles.get(mProfileNames.get(profileName)), true, cause);
             restoreCallingIdentity(token);
             return true;
         }
@@ -369,8 +411,9 @@ public class ProfileManagerService extends LineageSystemService {
              *   not included in the caller's permissions
              * - broadcast INTENT_ACTION_PROFILE_SELECTED
              */
+            final String cause = "setActiveProfile uid=" + getCallingUid();
             long token = clearCallingIdentity();
-            boolean ret = setActiveProfileInternal(profileParcelUuid.getUuid(), true);
+            boolean ret = setActiveProfileInternal(profileParcelUuid.getUuid(), true, cause);
             restoreCallingIdentity(token);
             return ret;
         }
@@ -410,6 +453,17 @@ public class ProfileManagerService extends LineageSystemService {
             return profiles;
         }
 
+        @Override
+        public ProfileSummary[] getProfileSummaries() {
+            Profile[] profiles = getProfileList().toArray(new Profile[mProfiles.size()]);
+            Arrays.sort(profiles);
+            ProfileSummary[] summaries = new ProfileSummary[profiles.length];
+            for (int i = 0; i < profiles.length; i++) {
+                summaries[i] = new ProfileSummary(profiles[i], profiles[i] == mActiveProfile);
+            }
+            return summaries;
+        }
+
         @Override
         public Profile getActiveProfile() {
             if (!isEnabled()) {
@@ -448,12 +502,13 @@ public class ProfileManagerService extends LineageSystemService {
             mProfiles.put(profile.getUuid(), profile);
             /* no need to set mDirty, if the profile was actually changed,
              * it's marked as dirty by itself */
+            final String cause = "updateProfile uid=" + getCallingUid();
             long token = clearCallingIdentity();
             persistIfDirty();
 
             // Also update if we changed the active profile
             if (mActiveProfile != null && mActiveProfile.getUuid().equals(profile.getUuid())) {
-                setActiveProfileInternal(profile, true);
+                setActiveProfileInternal(profile, true, cause);
             }
             restoreCallingIdentity(token);
         }
@@ -559,6 +614,29 @@ public class ProfileManagerService extends LineageSystemService {
                 restoreCallingIdentity(token);
             }
         }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("ProfileManager Service State:");
+            synchronized (ProfileManagerService.this) {
+                pw.println("  mActiveProfile=" + (mActiveProfile != null
+                        ? mActiveProfile.getName() + " (" + mActiveProfile.getUuid() + ")"
+                        : null));
+                pw.println("  mLastAppliedProfile=" + (mLastAppliedProfile != null
+                        ? mLastAppliedProfile.getUuid() : null));
+                pw.println("  mLastSelectStats=" + mLastSelectStats);
+            }
+            pw.println("  mConnectionExecutor: active=" + mConnectionExecutor.getActiveCount()
+                    + " completed=" + mConnectionExecutor.getCompletedTaskCount());
+            if (mTriggerHelper != null) {
+                mTriggerHelper.dump(pw);
+            }
+            pw.println();
+            mSwitchLog.dump(pw);
+        }
     };
 
     private void addProfileInternal(Profile profile) {
@@ -669,9 +747,8 @@ public class ProfileManagerService extends LineageSystemService {
     // Called by SystemBackupAgent after files are restored to disk.
     void settingsRestored() {
         initialize();
-        for (Profile p : mProfiles.values()) {
-            p.validateRingtones(mContext);
-        }
+        int saved = Profile.validateRingtones(mContext, mProfiles.values());
+        Log.d(TAG, "Validated restored ringtones, saved " + saved + " provider queries");
         persistIfDirty();
     }
 
@@ -715,14 +792,14 @@ public class ProfileManagerService extends LineageSystemService {
         // and besides, the volume settings will have survived the reboot.
         try {
             // Try / catch block to detect if XML file needs to be upgraded.
-            setActiveProfileInternal(UUID.fromString(active), false);
+            setActiveProfileInternal(UUID.fromString(active), false, "load");
         } catch (IllegalArgumentException e) {
             if (mProfileNames.containsKey(active)) {
-                setActiveProfileInternal(mProfileNames.get(active), false);
+                setActiveProfileInternal(mProfileNames.get(active), false, "load");
             } else {
                 // Final fail-safe: We must have SOME profile active.
                 // If we couldn't select one by now, we'll pick the first in the set.
-                setActiveProfileInternal(mProfiles.values().iterator().next(), false);
+                setActiveProfileInternal(mProfiles.values().iterator().next(), false, "load");
             }
             // This is a hint that we probably just upgraded the XML file. Save changes.
             mDirty = true;
@@ -741,7 +818,7 @@ public class ProfileManagerService extends LineageSystemService {
         }
     }
 
-    private boolean setActiveProfileInternal(UUID profileUuid, boolean doInit) {
+    private boolean setActiveProfileInternal(UUID profileUuid, boolean doInit, String cause) {
         if (!mProfiles.containsKey(profileUuid)) {
             Log.e(TAG, "Cannot set active profile to: "
                     + profileUuid.toString() + " - does not exist.");
@@ -749,7 +826,7 @@ public class ProfileManagerService extends LineageSystemService {
         }
 
         if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(UUID, boolean) found UUID in mProfiles.");
-        setActiveProfileInternal(mProfiles.get(profileUuid), doInit);
+        setActiveProfileInternal(mProfiles.get(profileUuid), doInit, cause);
         return true;
     }
 
@@ -757,7 +834,8 @@ public class ProfileManagerService extends LineageSystemService {
         return mActiveProfile;
     }
 
-    /* package */ void setActiveProfileInternal(Profile newActiveProfile, boolean doInit) {
+    /* package */ void setActiveProfileInternal(Profile newActiveProfile, boolean doInit,
+            String cause) {
         /*
          * NOTE: Since this is not a public function, and all public functions
          * take either a string or a UUID, the active profile should always be
@@ -777,23 +855,51 @@ public class ProfileManagerService extends LineageSystemService {
 
         if (doInit) {
             if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(Profile, boolean) - Running init");
-            // Call profile's "doSelect"
-            mActiveProfile.doSelect(mContext, mKeyguardService);
+            Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "ProfileManager.setActiveProfile");
+            try {
+                final long start = SystemClock.elapsedRealtime();
+
+                // Call profile's "doSelect"
+                Profile.SelectStats stats = applyProfile(mActiveProfile, true);
+
+                // Notify other applications of newly selected profile.
+                final long broadcastDuration;
+                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "ProfileManager.broadcast");
+                try {
+                    final long broadcastStart = SystemClock.elapsedRealtime();
+                    Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_SELECTED);
+                    broadcast.putExtra(ProfileManager.EXTRA_PROFILE_NAME,
+                            mActiveProfile.getName());
+                    broadcast.putExtra(ProfileManager.EXTRA_PROFILE_UUID,
+                            mActiveProfile.getUuid().toString());
+                    broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_NAME,
+                            lastProfile.getName());
+                    broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_UUID,
+                            lastProfile.getUuid().toString());
+                    broadcast.addFlags(Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
+
+                    mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
+                    broadcastDuration = SystemClock.elapsedRealtime() - broadcastStart;
+                } finally {
+                    Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                }
 
-            // Notify other applications of newly selected profile.
-            Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_SELECTED);
-            broadcast.putExtra(ProfileManager.EXTRA_PROFILE_NAME,
-                    mActiveProfile.getName());
-            broadcast.putExtra(ProfileManager.EXTRA_PROFILE_UUID,
-                    mActiveProfile.getUuid().toString());
-            broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_NAME,
-                    lastProfile.getName());
-            broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_UUID,
-                    lastProfile.getUuid().toString());
-            broadcast.addFlags(Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
+                final long persistDuration;
+                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "ProfileManager.persist");
+                try {
+                    final long persistStart = SystemClock.elapsedRealtime();
+                    persistIfDirty();
+                    persistDuration = SystemClock.elapsedRealtime() - persistStart;
+                } finally {
+                    Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                }
 
-            mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
-            persistIfDirty();
+                mSwitchLog.log(new SwitchLog.Entry(lastProfile.getName(),
+                        mActiveProfile.getName(), cause, SystemClock.elapsedRealtime() - start,
+                        stats, broadcastDuration, persistDuration));
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            }
         } else if (lastProfile != mActiveProfile && ActivityManagerNative.isSystemReady()) {
             // Something definitely changed: notify.
             Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_UPDATED);
@@ -805,6 +911,63 @@ public class ProfileManagerService extends LineageSystemService {
         }
     }
 
+    /**
+     * Apply the overrides of the given profile, skipping everything that is already
+     * in effect on the device or unchanged since the last applied profile.
+     */
+    /* package */ Profile.SelectStats applyProfile(Profile profile, boolean withKeyguard) {
+        Profile lastApplied;
+        synchronized (this) {
+            lastApplied = mLastAppliedProfile;
+        }
+
+        final IKeyguardService keyguard = withKeyguard ? mKeyguardService : null;
+        Profile.SelectStats stats = new Profile.SelectStats();
+        profile.doSelect(mContext, keyguard, lastApplied, mConnectionExecutor, stats);
+        if (LOCAL_LOGV) Log.v(TAG, "Applied " + profile.getName() + ": " + stats);
+
+        Profile snapshot = snapshotProfile(profile);
+        if (keyguard == null) {
+            // The lock override wasn't applied, remember whatever was in effect before
+            snapshot.setScreenLockMode(lastApplied != null
+                    ? lastApplied.getScreenLockMode() : new LockSettings(LOCK_MODE_UNKNOWN));
+        }
+        synchronized (this) {
+            mLastAppliedProfile = snapshot;
+            mLastSelectStats = stats;
+        }
+        return stats;
+    }
+
+    /**
+     * Apply the overrides of the active profile again without switching profiles,
+     * e.g. because one of its triggers fired.
+     */
+    /* package */ void reapplyActiveProfile(boolean withKeyguard, String cause) {
+        final Profile profile = mActiveProfile;
+        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "ProfileManager.reapplyProfile");
+        try {
+            final long start = SystemClock.elapsedRealtime();
+            Profile.SelectStats stats = applyProfile(profile, withKeyguard);
+            mSwitchLog.log(new SwitchLog.Entry(profile.getName(), profile.getName(), cause,
+                    SystemClock.elapsedRealtime() - start, stats, 0, 0));
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        }
+    }
+
+    private static Profile snapshotProfile(Profile profile) {
+        // Profiles are mutable, keep our own copy of what was actually applied
+        Parcel parcel = Parcel.obtain();
+        try {
+            profile.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return Profile.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
     private void addNotificationGroupInternal(NotificationGroup group) {
         if (mGroups.put(group.getUuid(), group) == null) {
             // If the above is true, then the ProfileGroup shouldn't exist in
@@ -815,4 +978,62 @@ public class ProfileManagerService extends LineageSystemService {
         }
         mDirty = true;
     }
+
+    /**
+     * Bounded history of recent profile switches and their timings.
+     */
+    private static class SwitchLog {
+
+        private static final int LOG_BUF_SIZE = 20;
+
+        static class Entry {
+            private final long timestamp;
+            private final String from;
+            private final String to;
+            private final String cause;
+            private final long totalDuration;
+            private final Profile.SelectStats selectStats;
+            private final long broadcastDuration;
+            private final long persistDuration;
+
+            Entry(String from_, String to_, String cause_, long totalDuration_,
+                    Profile.SelectStats selectStats_, long broadcastDuration_,
+                    long persistDuration_) {
+                timestamp = System.currentTimeMillis();
+                from = from_;
+                to = to_;
+                cause = cause_;
+                totalDuration = totalDuration_;
+                selectStats = selectStats_;
+                broadcastDuration = broadcastDuration_;
+                persistDuration = persistDuration_;
+            }
+        }
+
+        private final ArrayDeque<Entry> mBuffer = new ArrayDeque<>(LOG_BUF_SIZE);
+
+        void log(Entry entry) {
+            synchronized (mBuffer) {
+                mBuffer.add(entry);
+                if (mBuffer.size() > LOG_BUF_SIZE) {
+                    mBuffer.poll();
+                }
+            }
+        }
+
+        void dump(PrintWriter pw) {
+            synchronized (mBuffer) {
+                pw.println("  Profile switch log:");
+                for (Entry entry : mBuffer) {
+                    pw.println(String.format(
+                            "    %1$tH:%1$tM:%1$tS.%1$tL: %2$s -> %3$s (%4$s) total=%5$dms"
+                            + " broadcast=%6$dms persist=%7$dms",
+                            new Date(entry.timestamp), entry.from, entry.to, entry.cause,
+                            entry.totalDuration, entry.broadcastDuration,
+                            entry.persistDuration));
+                    pw.println("      doSelect: " + entry.selectStats);
+                }
+            }
+        }
+    }
 }
@@ -31,6 +31,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.UserHandle;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 import lineageos.app.Profile;
@@ -38,6 +39,7 @@ import lineageos.app.Profile.ProfileTrigger;
 import lineageos.app.ProfileManager;
 import lineageos.providers.LineageSettings;
 
+import java.io.PrintWriter;
 import java.util.Set;
 import java.util.UUID;
 
@@ -47,9 +49,52 @@ import java.util.UUID;
 public class ProfileTriggerHelper extends BroadcastReceiver {
     private static final String TAG = "ProfileTriggerHelper";
 
+    private static final long DUMP_TIMEOUT_MS = 1000;
+
     private Context mContext;
+    private Handler mHandler;
     private ProfileManagerService mManagerService;
 
+    // Settle windows per trigger type, indexed by Profile.TriggerType
+    private final int[] mSettleWindows = new int[2];
+
+    // Trigger events waiting for their settle window to expire, keyed by type and id
+    private final ArrayMap<String, PendingTrigger> mPendingTriggers = new ArrayMap<>();
+    // Last trigger state handed to checkTriggers, keyed by type and id
+    private final ArrayMap<String, Integer> mDeliveredStates = new ArrayMap<>();
+
+    private int mReceivedEvents;
+    private int mDeliveredEvents;
+    private int mCoalescedEvents;
+    private int mSuppressedFlaps;
+    private int mSuppressedDuplicates;
+
+    private final class PendingTrigger implements Runnable {
+        final String key;
+        final int type;
+        final String id;
+        int state;
+
+        PendingTrigger(String key, int type, String id, int state) {
+            this.key = key;
+            this.type = type;
+            this.id = id;
+            this.state = state;
+        }
+
+        @Override
+        public void run() {
+            mPendingTriggers.remove(key);
+            Integer delivered = mDeliveredStates.get(key);
+            if (delivered != null && delivered == state) {
+                // Flapped back to where it started, nothing to do
+                mSuppressedFlaps++;
+                return;
+            }
+            deliverTrigger(key, type, id, state);
+        }
+    }
+
     private WifiManager mWifiManager;
     private String mLastConnectedSSID;
 
@@ -71,7 +116,12 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
     public ProfileTriggerHelper(Context context, Handler handler,
             ProfileManagerService profileManagerService) {
         mContext = context;
+        mHandler = handler;
         mManagerService = profileManagerService;
+        mSettleWindows[Profile.TriggerType.WIFI] = context.getResources().getInteger(
+                org.lineageos.platform.internal.R.integer.config_profileTriggerWifiSettleMs);
+        mSettleWindows[Profile.TriggerType.BLUETOOTH] = context.getResources().getInteger(
+                org.lineageos.platform.internal.R.integer.config_profileTriggerBluetoothSettleMs);
         mSettingsObserver = new SettingsObserver(handler);
 
         mWifiManager = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
@@ -94,12 +144,17 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
                 LineageSettings.System.SYSTEM_PROFILES_ENABLED, 1) == 1;
         if (enabled && !mFilterRegistered) {
             Log.v(TAG, "Enabling");
-            mContext.registerReceiver(this, mIntentFilter);
+            mContext.registerReceiver(this, mIntentFilter, null, mHandler);
             mFilterRegistered = true;
         } else if (!enabled && mFilterRegistered) {
             Log.v(TAG, "Disabling");
             mContext.unregisterReceiver(this);
             mFilterRegistered = false;
+            for (int i = 0; i < mPendingTriggers.size(); i++) {
+                mHandler.removeCallbacks(mPendingTriggers.valueAt(i));
+            }
+            mPendingTriggers.clear();
+            mDeliveredStates.clear();
         }
     }
 
@@ -111,7 +166,7 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
             NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
             NetworkInfo.DetailedState state = networkInfo.getDetailedState();
             if (NetworkInfo.DetailedState.DISCONNECTED.equals(state)) {
-                checkTriggers(Profile.TriggerType.WIFI, mLastConnectedSSID,
+                onTriggerEvent(Profile.TriggerType.WIFI, mLastConnectedSSID,
                         Profile.TriggerState.ON_DISCONNECT);
                 mLastConnectedSSID = WifiSsid.NONE;
             } else if (NetworkInfo.DetailedState.CONNECTED.equals(state)) {
@@ -119,7 +174,7 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
                 WifiSsid ssid = wifiInfo.getWifiSsid();
                 if (ssid != null) {
                     mLastConnectedSSID = ssid.toString();
-                    checkTriggers(Profile.TriggerType.WIFI, mLastConnectedSSID,
+                    onTriggerEvent(Profile.TriggerType.WIFI, mLastConnectedSSID,
                             Profile.TriggerState.ON_CONNECT);
                 }
             }
@@ -129,7 +184,7 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
                     ? Profile.TriggerState.ON_CONNECT : Profile.TriggerState.ON_DISCONNECT;
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 
-            checkTriggers(Profile.TriggerType.BLUETOOTH, device.getAddress(), triggerState);
+            onTriggerEvent(Profile.TriggerType.BLUETOOTH, device.getAddress(), triggerState);
 /*        } else if (action.equals(AudioManager.A2DP_ROUTE_CHANGED_ACTION)) {
             BluetoothDevice device = intent
                     .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
@@ -138,7 +193,65 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
                     ? Profile.TriggerState.ON_A2DP_CONNECT :
                     Profile.TriggerState.ON_A2DP_DISCONNECT;
 
-            checkTriggers(Profile.TriggerType.BLUETOOTH, device.getAddress(), triggerState);*/
+            onTriggerEvent(Profile.TriggerType.BLUETOOTH, device.getAddress(), triggerState);*/
+        }
+    }
+
+    private void onTriggerEvent(int type, String id, int newState) {
+        mReceivedEvents++;
+        final int settleWindow = mSettleWindows[type];
+        if (settleWindow <= 0) {
+            checkTriggers(type, id, newState);
+            mDeliveredEvents++;
+            return;
+        }
+
+        final String key = type + "/" + id;
+        PendingTrigger pending = mPendingTriggers.get(key);
+        if (pending != null) {
+            // Still settling, only the latest state counts
+            mCoalescedEvents++;
+            mHandler.removeCallbacks(pending);
+            pending.state = newState;
+        } else {
+            Integer delivered = mDeliveredStates.get(key);
+            if (delivered != null && delivered == newState) {
+                mSuppressedDuplicates++;
+                return;
+            }
+            pending = new PendingTrigger(key, type, id, newState);
+            mPendingTriggers.put(key, pending);
+        }
+        mHandler.postDelayed(pending, settleWindow);
+    }
+
+    private void deliverTrigger(String key, int type, String id, int newState) {
+        mDeliveredStates.put(key, newState);
+        mDeliveredEvents++;
+        checkTriggers(type, id, newState);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  ProfileTriggerHelper State:");
+        pw.println("    mSettleWindows: wifi=" + mSettleWindows[Profile.TriggerType.WIFI]
+                + "ms bluetooth=" + mSettleWindows[Profile.TriggerType.BLUETOOTH] + "ms");
+        // The pending triggers and counters are only touched on mHandler, snapshot them there
+        final StringBuilder state = new StringBuilder();
+        final boolean done = mHandler.runWithScissors(new Runnable() {
+            @Override
+            public void run() {
+                state.append("    mPendingTriggers=").append(mPendingTriggers.keySet())
+                        .append("\n    received=").append(mReceivedEvents)
+                        .append(" delivered=").append(mDeliveredEvents)
+                        .append(" coalesced=").append(mCoalescedEvents)
+                        .append(" suppressedFlaps=").append(mSuppressedFlaps)
+                        .append(" suppressedDuplicates=").append(mSuppressedDuplicates);
+            }
+        }, DUMP_TIMEOUT_MS);
+        if (done) {
+            pw.println(state);
+        } else {
+            pw.println("    (timed out waiting for the trigger state)");
         }
     }
 
@@ -154,7 +267,8 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
             }
 
             if (!currentProfileUuid.equals(p.getUuid())) {
-                mManagerService.setActiveProfileInternal(p, true);
+                mManagerService.setActiveProfileInternal(p, true,
+                        "trigger type=" + type + " id=" + id + " state=" + newState);
                 newProfileSelected = true;
             }
         }
@@ -176,7 +290,8 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
                             && triggerState == Profile.TriggerState.ON_CONNECT) ||
                             (newState == Profile.TriggerState.ON_DISCONNECT
                             && triggerState == Profile.TriggerState.ON_DISCONNECT)) {
-                        activeProfile.doSelect(mContext, null);
+                        mManagerService.reapplyActiveProfile(false,
+                                "trigger type=" + type + " id=" + id + " state=" + newState);
                     }
                     break;
                 }
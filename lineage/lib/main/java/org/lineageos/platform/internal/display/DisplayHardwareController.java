@@ -16,6 +16,8 @@
  */
 package org.lineageos.platform.internal.display;
 
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
 import android.animation.FloatArrayEvaluator;
 import android.animation.ValueAnimator;
 import android.animation.ValueAnimator.AnimatorUpdateListener;
@@ -61,6 +63,8 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     private final float[] mColorAdjustment = getDefaultAdjustment();
 
     private ValueAnimator mAnimator;
+    // last calibration sent while animating, frames quantizing to it are dropped
+    private final int[] mAnimatedColor = new int[3];
 
     private final int mMaxColor;
 
@@ -165,15 +169,17 @@ public class DisplayHardwareController extends LiveDisplayFeature {
 
     @Override
     public synchronized void onSettingsChanged(Uri uri) {
+        int features = 0;
         if (uri == null || uri.equals(DISPLAY_CABC)) {
-            updateCABCMode();
+            features |= LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT;
         }
         if (uri == null || uri.equals(DISPLAY_AUTO_CONTRAST)) {
-            updateAutoContrast();
+            features |= LineageHardwareManager.FEATURE_AUTO_CONTRAST;
         }
         if (uri == null || uri.equals(DISPLAY_COLOR_ENHANCE)) {
-            updateColorEnhancement();
+            features |= LineageHardwareManager.FEATURE_COLOR_ENHANCEMENT;
         }
+        updateFeatureStates(features);
         if (uri == null || uri.equals(DISPLAY_COLOR_ADJUSTMENT)) {
             copyColors(getColorAdjustment(), mColorAdjustment);
             updateColorAdjustment();
@@ -182,9 +188,9 @@ public class DisplayHardwareController extends LiveDisplayFeature {
 
     private synchronized void updateHardware() {
         if (isScreenOn()) {
-            updateCABCMode();
-            updateAutoContrast();
-            updateColorEnhancement();
+            updateFeatureStates(LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT |
+                    LineageHardwareManager.FEATURE_AUTO_CONTRAST |
+                    LineageHardwareManager.FEATURE_COLOR_ENHANCEMENT);
         }
     }
 
@@ -219,40 +225,51 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         pw.println("    mAutoContrast=" + isAutoContrastEnabled());
         pw.println("    mColorEnhancement=" + isColorEnhancementEnabled());
         pw.println("    mCABC=" + isCABCEnabled());
+        pw.println("    hardware features=0x" + Integer.toHexString(
+                mHardware.getFeatureStates(getSupportedBooleanFeatures())));
         pw.println("    mColorAdjustment=" + Arrays.toString(mColorAdjustment));
         pw.println("    mAdditionalAdjustment=" + Arrays.toString(mAdditionalAdjustment));
         pw.println("    hardware setting=" + Arrays.toString(mHardware.getDisplayColorCalibration()));
     }
 
-    /**
-     * Automatic contrast optimization
-     */
-    private void updateAutoContrast() {
-        if (!mUseAutoContrast) {
-            return;
+    private int getSupportedBooleanFeatures() {
+        int features = 0;
+        if (mUseCABC) {
+            features |= LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT;
         }
-        mHardware.set(LineageHardwareManager.FEATURE_AUTO_CONTRAST, isAutoContrastEnabled());
-    }
-
-    /**
-     * Color enhancement is optional
-     */
-    private void updateColorEnhancement() {
-        if (!mUseColorEnhancement) {
-            return;
+        if (mUseAutoContrast) {
+            features |= LineageHardwareManager.FEATURE_AUTO_CONTRAST;
         }
-        mHardware.set(LineageHardwareManager.FEATURE_COLOR_ENHANCEMENT,
-                (!isLowPowerMode() || mDefaultColorEnhancement) && isColorEnhancementEnabled());
+        if (mUseColorEnhancement) {
+            features |= LineageHardwareManager.FEATURE_COLOR_ENHANCEMENT;
+        }
+        return features;
     }
 
     /**
+     * Push the requested boolean features to the hardware in a single call.
+     *
      * Adaptive backlight / low power mode. Turn it off when under very bright light.
+     * Automatic contrast optimization.
+     * Color enhancement is optional.
      */
-    private void updateCABCMode() {
-        if (!mUseCABC) {
+    private void updateFeatureStates(int features) {
+        final int mask = features & getSupportedBooleanFeatures();
+        if (mask == 0) {
             return;
         }
-        mHardware.set(LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT, isCABCEnabled());
+
+        int values = 0;
+        if (isCABCEnabled()) {
+            values |= LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT;
+        }
+        if (isAutoContrastEnabled()) {
+            values |= LineageHardwareManager.FEATURE_AUTO_CONTRAST;
+        }
+        if ((!isLowPowerMode() || mDefaultColorEnhancement) && isColorEnhancementEnabled()) {
+            values |= LineageHardwareManager.FEATURE_COLOR_ENHANCEMENT;
+        }
+        mHardware.setFeatureStates(mask, values & mask);
     }
 
     private synchronized void updateColorAdjustment() {
@@ -279,7 +296,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     /**
      * Smoothly animate the current display colors to the new value.
      */
-    private synchronized void animateDisplayColor(float[] targetColors) {
+    private synchronized void animateDisplayColor(final float[] targetColors) {
 
         // always start with the current values in the hardware
         int[] currentInts = mHardware.getDisplayColorCalibration();
@@ -308,8 +325,10 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         if (mAnimator != null) {
             mAnimator.cancel();
             mAnimator.removeAllUpdateListeners();
+            mAnimator.removeAllListeners();
         }
 
+        System.arraycopy(currentInts, 0, mAnimatedColor, 0, mAnimatedColor.length);
         mAnimator = ValueAnimator.ofObject(
                 new FloatArrayEvaluator(new float[3]), currentColors, targetColors);
         mAnimator.setDuration(duration);
@@ -320,16 +339,49 @@ public class DisplayHardwareController extends LiveDisplayFeature {
                 synchronized (DisplayHardwareController.this) {
                     if (isScreenOn()) {
                         float[] value = (float[]) animation.getAnimatedValue();
-                        mHardware.setDisplayColorCalibration(new int[] {
+                        int[] rgb = new int[] {
                                 (int) (value[0] * mMaxColor),
                                 (int) (value[1] * mMaxColor),
                                 (int) (value[2] * mMaxColor)
-                        });
+                        };
+                        if (Arrays.equals(rgb, mAnimatedColor)) {
+                            return;
+                        }
+                        System.arraycopy(rgb, 0, mAnimatedColor, 0, rgb.length);
+                        // Don't block the animation on the hardware
+                        mHardware.setDisplayColorCalibrationAsync(rgb);
                         screenRefresh();
                     }
                 }
             }
         });
+        mAnimator.addListener(new AnimatorListenerAdapter() {
+            private boolean mCanceled;
+
+            @Override
+            public void onAnimationCancel(Animator animation) {
+                mCanceled = true;
+            }
+
+            @Override
+            public void onAnimationEnd(Animator animation) {
+                synchronized (DisplayHardwareController.this) {
+                    if (mCanceled || !isScreenOn()) {
+                        return;
+                    }
+                    // The asynchronous frames may still be queued in the service, so
+                    // write the final color before refreshing to make sure it shows
+                    int[] rgb = new int[] {
+                            (int) (targetColors[0] * mMaxColor),
+                            (int) (targetColors[1] * mMaxColor),
+                            (int) (targetColors[2] * mMaxColor)
+                    };
+                    System.arraycopy(rgb, 0, mAnimatedColor, 0, rgb.length);
+                    mHardware.setDisplayColorCalibration(rgb);
+                    screenRefresh();
+                }
+            }
+        });
         mAnimator.start();
     }
 
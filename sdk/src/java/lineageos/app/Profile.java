@@ -16,11 +16,15 @@
 
 package lineageos.app;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.media.AudioManager;
+import android.net.Uri;
 import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
@@ -49,6 +53,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class that represents a device profile.
@@ -77,6 +85,8 @@ public final class Profile implements Parcelable, Comparable {
 
     private static final String TAG = "Profile";
 
+    private static final long CONNECTION_OVERRIDE_TIMEOUT_MS = 10000;
+
     private int mProfileType;
 
     private Map<Integer, StreamSettings> streams = new HashMap<Integer, StreamSettings>();
@@ -1113,9 +1123,36 @@ public final class Profile implements Parcelable, Comparable {
 
     /** @hide */
     public void validateRingtones(Context context) {
+        validateRingtones(new RingtoneUriValidator(context));
+    }
+
+    private void validateRingtones(RingtoneUriValidator validator) {
         for (ProfileGroup pg : profileGroups.values()) {
-            pg.validateOverrideUris(context);
+            pg.validateOverrideUris(validator);
+        }
+    }
+
+    /**
+     * Validate the ringtones of all given profiles in one pass, looking up each
+     * distinct URI only once.
+     * @return the number of provider queries saved compared to validating each
+     *         profile on its own
+     * @hide
+     */
+    public static int validateRingtones(Context context, Collection<Profile> profiles) {
+        final RingtoneUriValidator validator = new RingtoneUriValidator(context);
+        final ArrayList<Uri> uris = new ArrayList<>();
+        for (Profile profile : profiles) {
+            for (ProfileGroup pg : profile.profileGroups.values()) {
+                uris.add(pg.getSoundOverride());
+                uris.add(pg.getRingerOverride());
+            }
+        }
+        validator.prefetch(uris);
+        for (Profile profile : profiles) {
+            profile.validateRingtones(validator);
         }
+        return validator.getSavedQueryCount();
     }
 
     /** @hide */
@@ -1230,39 +1267,92 @@ public final class Profile implements Parcelable, Comparable {
 
     /** @hide */
     public void doSelect(Context context, IKeyguardService keyguardService) {
+        doSelect(context, keyguardService, null, null, null);
+    }
+
+    /**
+     * Apply the overrides of this profile to the device, only touching what differs
+     * from the current device state. Overrides whose state can't be read back from the
+     * device (network mode, lock screen) are compared against {@code lastApplied}
+     * instead, and skipped if they are unchanged.
+     *
+     * @param lastApplied the profile that was applied last, or null to apply those
+     *                    overrides unconditionally
+     * @param connectionExecutor if non-null, independent connection overrides are
+     *                           dispatched to it concurrently
+     * @param stats if non-null, receives per-step timings and counters
+     * @hide
+     */
+    public void doSelect(Context context, IKeyguardService keyguardService,
+            Profile lastApplied, Executor connectionExecutor, SelectStats stats) {
+        final ContentResolver resolver = context.getContentResolver();
+        long start;
+
         // Set stream volumes
+        start = beginStep(SelectStats.STEP_STREAMS);
         AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         for (StreamSettings sd : streams.values()) {
-            if (sd.isOverride()) {
+            if (!sd.isOverride()) {
+                continue;
+            }
+            if (am.getStreamVolume(sd.getStreamId()) != sd.getValue()) {
                 am.setStreamVolume(sd.getStreamId(), sd.getValue(), 0);
+                noteApplied(stats, SelectStats.STEP_STREAMS);
+            } else {
+                noteSkipped(stats, SelectStats.STEP_STREAMS);
             }
         }
+        endStep(stats, SelectStats.STEP_STREAMS, start);
+
         // Set connections
-        for (ConnectionSettings cs : connections.values()) {
-            if (cs.isOverride()) {
-                cs.processOverride(context);
-            }
-        }
-        for (ConnectionSettings cs : networkConnectionSubIds.values()) {
-            if (cs.isOverride()) {
-                cs.processOverride(context);
-            }
-        }
+        start = beginStep(SelectStats.STEP_CONNECTIONS);
+        final boolean connectionsDone =
+                processConnectionOverrides(context, lastApplied, connectionExecutor, stats);
+        endStep(stats, SelectStats.STEP_CONNECTIONS, start);
 
         // Set ring mode
-        mRingMode.processOverride(context);
+        start = beginStep(SelectStats.STEP_RING_MODE);
+        if (mRingMode.isOverride()) {
+            mRingMode.processOverride(context);
+            noteApplied(stats, SelectStats.STEP_RING_MODE);
+        }
+        endStep(stats, SelectStats.STEP_RING_MODE, start);
+
         // Set airplane mode
-        mAirplaneMode.processOverride(context);
+        start = beginStep(SelectStats.STEP_AIRPLANE_MODE);
+        if (mAirplaneMode.isOverride() && !connectionsDone) {
+            // Toggling the radios off underneath the pending connection overrides would
+            // leave them in an undefined state, so leave airplane mode alone this time
+            Log.w(TAG, "Not applying airplane mode of " + mName
+                    + " while connection overrides are pending");
+        } else if (mAirplaneMode.isOverride()) {
+            mAirplaneMode.processOverride(context);
+            noteApplied(stats, SelectStats.STEP_AIRPLANE_MODE);
+        }
+        endStep(stats, SelectStats.STEP_AIRPLANE_MODE, start);
 
         // Set brightness
-        mBrightness.processOverride(context);
+        start = beginStep(SelectStats.STEP_BRIGHTNESS);
+        if (mBrightness.isOverride()) {
+            mBrightness.processOverride(context);
+            noteApplied(stats, SelectStats.STEP_BRIGHTNESS);
+        }
+        endStep(stats, SelectStats.STEP_BRIGHTNESS, start);
 
+        start = beginStep(SelectStats.STEP_LOCK_MODE);
         if (keyguardService != null) {
             // Set lock screen mode
-            mScreenLockMode.processOverride(context, keyguardService);
+            if (lastApplied != null
+                    && lastApplied.mScreenLockMode.getValue() == mScreenLockMode.getValue()) {
+                noteSkipped(stats, SelectStats.STEP_LOCK_MODE);
+            } else {
+                mScreenLockMode.processOverride(context, keyguardService);
+                noteApplied(stats, SelectStats.STEP_LOCK_MODE);
+            }
         } else {
             Log.e(TAG, "cannot process screen lock override without a keyguard service.");
         }
+        endStep(stats, SelectStats.STEP_LOCK_MODE, start);
 
         // Set expanded desktop
         // if (mExpandedDesktopMode != ExpandedDesktopMode.DEFAULT) {
@@ -1273,19 +1363,227 @@ public final class Profile implements Parcelable, Comparable {
         // }
 
         // Set doze mode
+        start = beginStep(SelectStats.STEP_DOZE_MODE);
         if (mDozeMode != DozeMode.DEFAULT) {
-            Settings.Secure.putIntForUser(context.getContentResolver(),
-                Settings.Secure.DOZE_ENABLED,
-                    mDozeMode == DozeMode.ENABLE ? 1 : 0,
-                    UserHandle.USER_CURRENT);
+            final int doze = mDozeMode == DozeMode.ENABLE ? 1 : 0;
+            if (Settings.Secure.getIntForUser(resolver, Settings.Secure.DOZE_ENABLED,
+                    -1, UserHandle.USER_CURRENT) != doze) {
+                Settings.Secure.putIntForUser(resolver, Settings.Secure.DOZE_ENABLED,
+                        doze, UserHandle.USER_CURRENT);
+                noteApplied(stats, SelectStats.STEP_DOZE_MODE);
+            } else {
+                noteSkipped(stats, SelectStats.STEP_DOZE_MODE);
+            }
         }
+        endStep(stats, SelectStats.STEP_DOZE_MODE, start);
 
         // Set notification light mode
+        start = beginStep(SelectStats.STEP_NOTIFICATION_LIGHT);
         if (mNotificationLightMode != NotificationLightMode.DEFAULT) {
-            Settings.System.putIntForUser(context.getContentResolver(),
-                Settings.System.NOTIFICATION_LIGHT_PULSE,
-                    mNotificationLightMode == NotificationLightMode.ENABLE ? 1 : 0,
-                    UserHandle.USER_CURRENT);
+            final int pulse = mNotificationLightMode == NotificationLightMode.ENABLE ? 1 : 0;
+            if (Settings.System.getIntForUser(resolver, Settings.System.NOTIFICATION_LIGHT_PULSE,
+                    -1, UserHandle.USER_CURRENT) != pulse) {
+                Settings.System.putIntForUser(resolver, Settings.System.NOTIFICATION_LIGHT_PULSE,
+                        pulse, UserHandle.USER_CURRENT);
+                noteApplied(stats, SelectStats.STEP_NOTIFICATION_LIGHT);
+            } else {
+                noteSkipped(stats, SelectStats.STEP_NOTIFICATION_LIGHT);
+            }
+        }
+        endStep(stats, SelectStats.STEP_NOTIFICATION_LIGHT, start);
+    }
+
+    /**
+     * @return false if the connection overrides dispatched to the executor did not
+     * finish in time
+     */
+    private boolean processConnectionOverrides(final Context context, Profile lastApplied,
+            Executor executor, SelectStats stats) {
+        // Group the overrides into independent lanes. WiFi and the WiFi hotspot
+        // share the same radio and have to be toggled in order.
+        final ArrayList<ArrayList<ConnectionSettings>> lanes = new ArrayList<>();
+        ArrayList<ConnectionSettings> wifiLane = null;
+        for (ConnectionSettings cs : connections.values()) {
+            if (!cs.isOverride()) {
+                continue;
+            }
+            final int id = cs.getConnectionId();
+            if (id == ConnectionSettings.PROFILE_CONNECTION_WIFI
+                    || id == ConnectionSettings.PROFILE_CONNECTION_WIFIAP) {
+                if (wifiLane == null) {
+                    wifiLane = new ArrayList<>();
+                    lanes.add(wifiLane);
+                }
+                if (id == ConnectionSettings.PROFILE_CONNECTION_WIFI) {
+                    wifiLane.add(0, cs);
+                } else {
+                    wifiLane.add(cs);
+                }
+            } else {
+                ArrayList<ConnectionSettings> lane = new ArrayList<>(1);
+                lane.add(cs);
+                lanes.add(lane);
+            }
+        }
+        ArrayList<ConnectionSettings> networkModeLane = null;
+        for (ConnectionSettings cs : networkConnectionSubIds.values()) {
+            if (!cs.isOverride()) {
+                continue;
+            }
+            // The network mode can't be read back, so compare against what was last applied
+            if (lastApplied != null) {
+                ConnectionSettings last =
+                        lastApplied.networkConnectionSubIds.get(cs.getSubId());
+                if (last != null && last.isOverride() && last.getValue() == cs.getValue()) {
+                    noteSkipped(stats, SelectStats.STEP_CONNECTIONS);
+                    continue;
+                }
+            }
+            if (networkModeLane == null) {
+                networkModeLane = new ArrayList<>();
+                lanes.add(networkModeLane);
+            }
+            networkModeLane.add(cs);
+        }
+
+        if (lanes.isEmpty()) {
+            return true;
+        }
+        if (executor == null || lanes.size() == 1) {
+            for (ArrayList<ConnectionSettings> lane : lanes) {
+                processConnectionLane(context, lane, stats);
+            }
+            return true;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(lanes.size());
+        for (final ArrayList<ConnectionSettings> lane : lanes) {
+            final SelectStats laneStats = stats;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        processConnectionLane(context, lane, laneStats);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            // Airplane mode is applied after this, so wait for the radios
+            if (latch.await(CONNECTION_OVERRIDE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            Log.w(TAG, "Timed out waiting for connection overrides of " + mName);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private static void processConnectionLane(Context context,
+            ArrayList<ConnectionSettings> lane, SelectStats stats) {
+        for (ConnectionSettings cs : lane) {
+            Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "Profile.doSelect:connection");
+            try {
+                if (cs.processOverride(context)) {
+                    noteApplied(stats, SelectStats.STEP_CONNECTIONS);
+                } else {
+                    noteSkipped(stats, SelectStats.STEP_CONNECTIONS);
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Unable to process connection override " + cs.getConnectionId(), e);
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            }
+        }
+    }
+
+    private static void noteApplied(SelectStats stats, int step) {
+        if (stats != null) {
+            stats.applied[step].incrementAndGet();
+        }
+    }
+
+    private static void noteSkipped(SelectStats stats, int step) {
+        if (stats != null) {
+            stats.skipped[step].incrementAndGet();
+        }
+    }
+
+    private static long beginStep(int step) {
+        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, SelectStats.TRACE_SECTIONS[step]);
+        return SystemClock.elapsedRealtime();
+    }
+
+    private static void endStep(SelectStats stats, int step, long start) {
+        if (stats != null) {
+            stats.durations[step] = SystemClock.elapsedRealtime() - start;
+        }
+        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+    }
+
+    /**
+     * Per-step timings and counters gathered while applying a {@link Profile}.
+     * @hide
+     */
+    public static final class SelectStats {
+        public static final int STEP_STREAMS = 0;
+        public static final int STEP_CONNECTIONS = 1;
+        public static final int STEP_RING_MODE = 2;
+        public static final int STEP_AIRPLANE_MODE = 3;
+        public static final int STEP_BRIGHTNESS = 4;
+        public static final int STEP_LOCK_MODE = 5;
+        public static final int STEP_DOZE_MODE = 6;
+        public static final int STEP_NOTIFICATION_LIGHT = 7;
+        public static final int STEP_COUNT = 8;
+
+        public static final String[] STEP_NAMES = new String[] {
+            "streams", "connections", "ringMode", "airplaneMode",
+            "brightness", "lockMode", "dozeMode", "notificationLight"
+        };
+
+        static final String[] TRACE_SECTIONS = new String[STEP_COUNT];
+        static {
+            for (int i = 0; i < STEP_COUNT; i++) {
+                TRACE_SECTIONS[i] = "Profile.doSelect:" + STEP_NAMES[i];
+            }
+        }
+
+        /** Duration of each step in milliseconds */
+        public final long[] durations = new long[STEP_COUNT];
+        /** Number of overrides processed for each step */
+        public final AtomicInteger[] applied = new AtomicInteger[STEP_COUNT];
+        /** Number of overrides skipped for each step because nothing changed */
+        public final AtomicInteger[] skipped = new AtomicInteger[STEP_COUNT];
+
+        public SelectStats() {
+            for (int i = 0; i < STEP_COUNT; i++) {
+                applied[i] = new AtomicInteger();
+                skipped[i] = new AtomicInteger();
+            }
+        }
+
+        public long getTotalDuration() {
+            long total = 0;
+            for (long duration : durations) {
+                total += duration;
+            }
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("total=").append(getTotalDuration()).append("ms");
+            for (int i = 0; i < STEP_COUNT; i++) {
+                builder.append(' ').append(STEP_NAMES[i]).append('=')
+                        .append(durations[i]).append("ms(")
+                        .append(applied[i].get()).append('/')
+                        .append(skipped[i].get()).append(')');
+            }
+            return builder.toString();
         }
     }
 
@@ -20,7 +20,6 @@ import android.app.Notification;
 import android.app.NotificationGroup;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Parcel;
@@ -233,27 +232,17 @@ public final class ProfileGroup implements Parcelable {
         }
     }
 
-    private boolean validateOverrideUri(Context context, Uri uri) {
-        if (RingtoneManager.isDefault(uri)) {
-            return true;
-        }
-        Cursor cursor = context.getContentResolver().query(uri, null, null, null, null);
-        boolean valid = false;
-
-        if (cursor != null) {
-            valid = cursor.moveToFirst();
-            cursor.close();
-        }
-        return valid;
+    void validateOverrideUris(Context context) {
+        validateOverrideUris(new RingtoneUriValidator(context));
     }
 
-    void validateOverrideUris(Context context) {
-        if (!validateOverrideUri(context, mSoundOverride)) {
+    void validateOverrideUris(RingtoneUriValidator validator) {
+        if (!validator.isValid(mSoundOverride)) {
             mSoundOverride = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
             mSoundMode = Mode.DEFAULT;
             mDirty = true;
         }
-        if (!validateOverrideUri(context, mRingerOverride)) {
+        if (!validator.isValid(mRingerOverride)) {
             mRingerOverride = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_RINGTONE);
             mRingerMode = Mode.DEFAULT;
             mDirty = true;
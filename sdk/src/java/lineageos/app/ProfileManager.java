@@ -384,7 +384,7 @@ public class ProfileManager {
      */
     public String[] getProfileNames() {
         try {
-            Profile[] profiles = getService().getProfiles();
+            ProfileSummary[] profiles = getService().getProfileSummaries();
             String[] names = new String[profiles.length];
             for (int i = 0; i < profiles.length; i++) {
                 names[i] = profiles[i].getName();
@@ -409,6 +409,21 @@ public class ProfileManager {
         return null;
     }
 
+    /**
+     * Get a lightweight {@link ProfileSummary} of each {@link Profile} currently available
+     * to the user, sorted by name. Prefer this over {@link #getProfiles()} when only the
+     * names, UUIDs or types of the profiles are needed.
+     * @return {@link ProfileSummary[]}
+     */
+    public ProfileSummary[] getProfileSummaries() {
+        try {
+            return getService().getProfileSummaries();
+        } catch (RemoteException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+        return null;
+    }
+
     /**
      * Check if a {@link Profile} exists via its literal name
      * @param profileName a profile name
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lineageos.app;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.UUID;
+
+import lineageos.os.Concierge;
+
+/**
+ * A lightweight description of a {@link Profile}, carrying only what is needed to
+ * list and pick profiles without transferring their full set of overrides.
+ */
+public final class ProfileSummary implements Parcelable {
+
+    private final UUID mUuid;
+
+    private final String mName;
+
+    private final int mProfileType;
+
+    private final boolean mActive;
+
+    /** @hide */
+    public ProfileSummary(Profile profile, boolean active) {
+        this(profile.getUuid(), profile.getName(), profile.getProfileType(), active);
+    }
+
+    /** @hide */
+    public ProfileSummary(UUID uuid, String name, int profileType, boolean active) {
+        mUuid = uuid;
+        mName = name;
+        mProfileType = profileType;
+        mActive = active;
+    }
+
+    private ProfileSummary(Parcel in) {
+        Concierge.ParcelInfo parcelInfo = Concierge.receiveParcel(in);
+
+        mUuid = new UUID(in.readLong(), in.readLong());
+        mName = in.readString();
+        mProfileType = in.readInt();
+        mActive = in.readInt() != 0;
+
+        parcelInfo.complete();
+    }
+
+    /**
+     * Get the {@link UUID} of the profile
+     * @return {@link UUID}
+     */
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    /**
+     * Get the name of the profile
+     * @return a {@link String} name
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Get the type of the profile
+     * @return a constant from {@link Profile.Type}
+     */
+    public int getProfileType() {
+        return mProfileType;
+    }
+
+    /**
+     * Whether or not the profile was the active one when this summary was created
+     * @return true if active
+     */
+    public boolean isActive() {
+        return mActive;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        Concierge.ParcelInfo parcelInfo = Concierge.prepareParcel(dest);
+
+        dest.writeLong(mUuid.getMostSignificantBits());
+        dest.writeLong(mUuid.getLeastSignificantBits());
+        dest.writeString(mName);
+        dest.writeInt(mProfileType);
+        dest.writeInt(mActive ? 1 : 0);
+
+        parcelInfo.complete();
+    }
+
+    public static final Creator<ProfileSummary> CREATOR = new Creator<ProfileSummary>() {
+        @Override
+        public ProfileSummary createFromParcel(Parcel in) {
+            return new ProfileSummary(in);
+        }
+
+        @Override
+        public ProfileSummary[] newArray(int size) {
+            return new ProfileSummary[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return String.format("ProfileSummary[uuid=%s, name=%s, type=%d, active=%b]",
+                mUuid, mName, mProfileType, mActive);
+    }
+}
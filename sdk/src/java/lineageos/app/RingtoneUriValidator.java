@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lineageos.app;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Checks whether ringtone override URIs still point to existing media, remembering
+ * the result of each URI for the duration of a validation pass. URIs which address
+ * rows of the same collection by id are checked with a single query.
+ */
+final class RingtoneUriValidator {
+    private static final String TAG = "RingtoneUriValidator";
+
+    // Upper bound of ids per batched query, to stay clear of SQLite's variable limit
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final ContentResolver mResolver;
+    private final ArrayMap<Uri, Boolean> mResults = new ArrayMap<>();
+
+    private int mRequests;
+    private int mQueries;
+
+    RingtoneUriValidator(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Look up the given URIs in as few queries as possible and cache the results.
+     */
+    void prefetch(Collection<Uri> uris) {
+        final ArrayMap<Uri, List<Uri>> collections = new ArrayMap<>();
+        for (Uri uri : uris) {
+            if (uri == null || RingtoneManager.isDefault(uri) || mResults.containsKey(uri)) {
+                continue;
+            }
+            final Uri collection = getCollectionUri(uri);
+            if (collection == null) {
+                continue;
+            }
+            List<Uri> members = collections.get(collection);
+            if (members == null) {
+                members = new ArrayList<>();
+                collections.put(collection, members);
+            }
+            if (!members.contains(uri)) {
+                members.add(uri);
+            }
+        }
+
+        for (int i = 0; i < collections.size(); i++) {
+            final List<Uri> members = collections.valueAt(i);
+            for (int start = 0; start < members.size(); start += MAX_BATCH_SIZE) {
+                queryBatch(collections.keyAt(i),
+                        members.subList(start, Math.min(start + MAX_BATCH_SIZE, members.size())));
+            }
+        }
+    }
+
+    /**
+     * @return whether the given URI is a default URI or points to an existing row
+     */
+    boolean isValid(Uri uri) {
+        if (RingtoneManager.isDefault(uri)) {
+            return true;
+        }
+        mRequests++;
+        Boolean cached = mResults.get(uri);
+        if (cached != null) {
+            return cached;
+        }
+
+        mQueries++;
+        Cursor cursor = mResolver.query(uri, null, null, null, null);
+        boolean valid = false;
+
+        if (cursor != null) {
+            valid = cursor.moveToFirst();
+            cursor.close();
+        }
+        mResults.put(uri, valid);
+        return valid;
+    }
+
+    /**
+     * @return the number of queries avoided compared to one query per validated URI
+     */
+    int getSavedQueryCount() {
+        return mRequests - mQueries;
+    }
+
+    private void queryBatch(Uri collection, List<Uri> members) {
+        final String[] ids = new String[members.size()];
+        final StringBuilder selection = new StringBuilder(BaseColumns._ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = members.get(i).getLastPathSegment();
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+
+        Cursor cursor;
+        try {
+            mQueries++;
+            cursor = mResolver.query(collection, new String[] { BaseColumns._ID },
+                    selection.toString(), ids, null);
+        } catch (RuntimeException e) {
+            // Leave these to the per-URI lookup in isValid()
+            Log.w(TAG, "Unable to batch validate " + collection, e);
+            return;
+        }
+        if (cursor == null) {
+            return;
+        }
+
+        final ArrayList<String> found = new ArrayList<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                found.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (int i = 0; i < ids.length; i++) {
+            mResults.put(members.get(i), found.contains(ids[i]));
+        }
+    }
+
+    /**
+     * @return the collection a row URI of the form content://authority/.../id belongs
+     * to, or null if the URI doesn't address a row by id
+     */
+    private static Uri getCollectionUri(Uri uri) {
+        if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())
+                || uri.getQuery() != null || uri.getFragment() != null) {
+            return null;
+        }
+        final List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2 || !TextUtils.isDigitsOnly(segments.get(segments.size() - 1))) {
+            return null;
+        }
+        final Uri.Builder builder = uri.buildUpon().path(null);
+        for (int i = 0; i < segments.size() - 1; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lineageos.hardware;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import lineageos.os.Build;
+import lineageos.os.Concierge;
+import lineageos.os.Concierge.ParcelInfo;
+
+/**
+ * Holder class for the static capabilities of the Lineage hardware.
+ *
+ * These values never change after boot, so they are computed once by
+ * the hardware service and cached by {@link LineageHardwareManager}.
+ *
+ * @hide
+ */
+public class HardwareCapabilities implements Parcelable {
+
+    private final int mSupportedFeatures;
+
+    private final int mColorCalibrationDefault;
+    private final int mColorCalibrationMin;
+    private final int mColorCalibrationMax;
+
+    private final int mVibratorDefaultIntensity;
+    private final int mVibratorMinIntensity;
+    private final int mVibratorMaxIntensity;
+    private final int mVibratorWarningIntensity;
+
+    public HardwareCapabilities(int supportedFeatures,
+            int colorCalibrationDefault, int colorCalibrationMin, int colorCalibrationMax,
+            int vibratorDefaultIntensity, int vibratorMinIntensity,
+            int vibratorMaxIntensity, int vibratorWarningIntensity) {
+        mSupportedFeatures = supportedFeatures;
+        mColorCalibrationDefault = colorCalibrationDefault;
+        mColorCalibrationMin = colorCalibrationMin;
+        mColorCalibrationMax = colorCalibrationMax;
+        mVibratorDefaultIntensity = vibratorDefaultIntensity;
+        mVibratorMinIntensity = vibratorMinIntensity;
+        mVibratorMaxIntensity = vibratorMaxIntensity;
+        mVibratorWarningIntensity = vibratorWarningIntensity;
+    }
+
+    private HardwareCapabilities(Parcel parcel) {
+        // Read parcelable version via the Concierge
+        ParcelInfo parcelInfo = Concierge.receiveParcel(parcel);
+        int parcelableVersion = parcelInfo.getParcelVersion();
+
+        // temp vars
+        int supportedFeatures = 0;
+        int colorCalibrationDefault = 0;
+        int colorCalibrationMin = 0;
+        int colorCalibrationMax = 0;
+        int vibratorDefaultIntensity = 0;
+        int vibratorMinIntensity = 0;
+        int vibratorMaxIntensity = 0;
+        int vibratorWarningIntensity = 0;
+
+        if (parcelableVersion >= Build.LINEAGE_VERSION_CODES.ILAMA) {
+            supportedFeatures = parcel.readInt();
+            colorCalibrationDefault = parcel.readInt();
+            colorCalibrationMin = parcel.readInt();
+            colorCalibrationMax = parcel.readInt();
+            vibratorDefaultIntensity = parcel.readInt();
+            vibratorMinIntensity = parcel.readInt();
+            vibratorMaxIntensity = parcel.readInt();
+            vibratorWarningIntensity = parcel.readInt();
+        }
+
+        // set temps
+        mSupportedFeatures = supportedFeatures;
+        mColorCalibrationDefault = colorCalibrationDefault;
+        mColorCalibrationMin = colorCalibrationMin;
+        mColorCalibrationMax = colorCalibrationMax;
+        mVibratorDefaultIntensity = vibratorDefaultIntensity;
+        mVibratorMinIntensity = vibratorMinIntensity;
+        mVibratorMaxIntensity = vibratorMaxIntensity;
+        mVibratorWarningIntensity = vibratorWarningIntensity;
+
+        // Complete parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    /**
+     * @return the supported features bitmask
+     */
+    public int getSupportedFeatures() {
+        return mSupportedFeatures;
+    }
+
+    /**
+     * @return the default display color calibration value for all colors
+     */
+    public int getColorCalibrationDefault() {
+        return mColorCalibrationDefault;
+    }
+
+    /**
+     * @return the minimum display color calibration value for all colors
+     */
+    public int getColorCalibrationMin() {
+        return mColorCalibrationMin;
+    }
+
+    /**
+     * @return the maximum display color calibration value for all colors
+     */
+    public int getColorCalibrationMax() {
+        return mColorCalibrationMax;
+    }
+
+    /**
+     * @return the default vibrator intensity
+     */
+    public int getVibratorDefaultIntensity() {
+        return mVibratorDefaultIntensity;
+    }
+
+    /**
+     * @return the minimum vibrator intensity
+     */
+    public int getVibratorMinIntensity() {
+        return mVibratorMinIntensity;
+    }
+
+    /**
+     * @return the maximum vibrator intensity
+     */
+    public int getVibratorMaxIntensity() {
+        return mVibratorMaxIntensity;
+    }
+
+    /**
+     * @return the vibrator intensity warning threshold
+     */
+    public int getVibratorWarningIntensity() {
+        return mVibratorWarningIntensity;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("supportedFeatures=0x").append(Integer.toHexString(mSupportedFeatures));
+        sb.append(" colorCalibrationDefault=").append(mColorCalibrationDefault);
+        sb.append(" colorCalibrationMin=").append(mColorCalibrationMin);
+        sb.append(" colorCalibrationMax=").append(mColorCalibrationMax);
+        sb.append(" vibratorDefaultIntensity=").append(mVibratorDefaultIntensity);
+        sb.append(" vibratorMinIntensity=").append(mVibratorMinIntensity);
+        sb.append(" vibratorMaxIntensity=").append(mVibratorMaxIntensity);
+        sb.append(" vibratorWarningIntensity=").append(mVibratorWarningIntensity);
+        return sb.toString();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        // Tell the concierge to prepare the parcel
+        ParcelInfo parcelInfo = Concierge.prepareParcel(out);
+
+        // ==== ILAMA =====
+        out.writeInt(mSupportedFeatures);
+        out.writeInt(mColorCalibrationDefault);
+        out.writeInt(mColorCalibrationMin);
+        out.writeInt(mColorCalibrationMax);
+        out.writeInt(mVibratorDefaultIntensity);
+        out.writeInt(mVibratorMinIntensity);
+        out.writeInt(mVibratorMaxIntensity);
+        out.writeInt(mVibratorWarningIntensity);
+
+        // Complete the parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    public static final Parcelable.Creator<HardwareCapabilities> CREATOR =
+            new Parcelable.Creator<HardwareCapabilities>() {
+        public HardwareCapabilities createFromParcel(Parcel in) {
+            return new HardwareCapabilities(in);
+        }
+
+        @Override
+        public HardwareCapabilities[] newArray(int size) {
+            return new HardwareCapabilities[size];
+        }
+    };
+}
@@ -16,10 +16,14 @@
  */
 package lineageos.hardware;
 
+import android.annotation.NonNull;
 import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Range;
 
@@ -30,10 +34,13 @@ import lineageos.hardware.HSIC;
 
 import java.io.UnsupportedEncodingException;
 import java.lang.IllegalArgumentException;
-import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Manages access to LineageOS hardware extensions
@@ -50,6 +57,15 @@ public final class LineageHardwareManager {
 
     private Context mContext;
 
+    // Capabilities never change after boot, so they are shared process-wide
+    private static volatile HardwareCapabilities sCapabilities;
+    // The display mode catalogue is fixed for the life of the boot as well
+    private static volatile DisplayMode[] sDisplayModes;
+
+    private Handler mHandler;
+    private final Set<HardwareStateListener> mStateListeners =
+            new CopyOnWriteArraySet<HardwareStateListener>();
+
     /* The VisibleForTesting annotation is to ensure Proguard doesn't remove these
      * fields, as they might be used via reflection. When the @Keep annotation in
      * the support library is properly handled in the platform, we should change this.
@@ -169,6 +185,47 @@ public final class LineageHardwareManager {
         FEATURE_READING_ENHANCEMENT
     );
 
+    /**
+     * Bitmask of all features which have simple enable/disable controls
+     *
+     * @hide
+     */
+    public static final int BOOLEAN_FEATURES_MASK;
+    static {
+        int mask = 0;
+        for (int feature : BOOLEAN_FEATURES) {
+            mask |= feature;
+        }
+        BOOLEAN_FEATURES_MASK = mask;
+    }
+
+    /**
+     * Feature field names to feature bits, as used by preference constraints.
+     * Must be kept in sync with the FEATURE_* constants above.
+     */
+    private static final Map<String, Integer> FEATURE_NAMES;
+    static {
+        final ArrayMap<String, Integer> names = new ArrayMap<String, Integer>();
+        names.put("FEATURE_ADAPTIVE_BACKLIGHT", FEATURE_ADAPTIVE_BACKLIGHT);
+        names.put("FEATURE_COLOR_ENHANCEMENT", FEATURE_COLOR_ENHANCEMENT);
+        names.put("FEATURE_DISPLAY_COLOR_CALIBRATION", FEATURE_DISPLAY_COLOR_CALIBRATION);
+        names.put("FEATURE_DISPLAY_GAMMA_CALIBRATION", FEATURE_DISPLAY_GAMMA_CALIBRATION);
+        names.put("FEATURE_HIGH_TOUCH_SENSITIVITY", FEATURE_HIGH_TOUCH_SENSITIVITY);
+        names.put("FEATURE_KEY_DISABLE", FEATURE_KEY_DISABLE);
+        names.put("FEATURE_LONG_TERM_ORBITS", FEATURE_LONG_TERM_ORBITS);
+        names.put("FEATURE_SERIAL_NUMBER", FEATURE_SERIAL_NUMBER);
+        names.put("FEATURE_SUNLIGHT_ENHANCEMENT", FEATURE_SUNLIGHT_ENHANCEMENT);
+        names.put("FEATURE_VIBRATOR", FEATURE_VIBRATOR);
+        names.put("FEATURE_TOUCH_HOVERING", FEATURE_TOUCH_HOVERING);
+        names.put("FEATURE_AUTO_CONTRAST", FEATURE_AUTO_CONTRAST);
+        names.put("FEATURE_DISPLAY_MODES", FEATURE_DISPLAY_MODES);
+        names.put("FEATURE_READING_ENHANCEMENT", FEATURE_READING_ENHANCEMENT);
+        names.put("FEATURE_COLOR_BALANCE", FEATURE_COLOR_BALANCE);
+        names.put("FEATURE_PICTURE_ADJUSTMENT", FEATURE_PICTURE_ADJUSTMENT);
+        names.put("FEATURE_TOUCHSCREEN_GESTURES", FEATURE_TOUCHSCREEN_GESTURES);
+        FEATURE_NAMES = Collections.unmodifiableMap(names);
+    }
+
     private static LineageHardwareManager sLineageHardwareManagerInstance;
 
     /**
@@ -181,6 +238,7 @@ public final class LineageHardwareManager {
         } else {
             mContext = context;
         }
+        mHandler = new Handler(mContext.getMainLooper());
         sService = getService();
 
         if (context.getPackageManager().hasSystemFeature(
@@ -220,6 +278,10 @@ public final class LineageHardwareManager {
      * @return the supported features bitmask
      */
     public int getSupportedFeatures() {
+        final HardwareCapabilities capabilities = getCapabilities();
+        if (capabilities != null) {
+            return capabilities.getSupportedFeatures();
+        }
         try {
             if (checkService()) {
                 return sService.getSupportedFeatures();
@@ -246,19 +308,12 @@ public final class LineageHardwareManager {
      * @hide
      */
     public boolean isSupported(String feature) {
-        if (!feature.startsWith("FEATURE_")) {
+        final Integer f = FEATURE_NAMES.get(feature);
+        if (f == null) {
+            Log.d(TAG, "Unknown feature " + feature);
             return false;
         }
-        try {
-            Field f = getClass().getField(feature);
-            if (f != null) {
-                return isSupported((int) f.get(null));
-            }
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            Log.d(TAG, e.getMessage(), e);
-        }
-
-        return false;
+        return isSupported(f);
     }
     /**
      * Determine if the given feature is enabled or disabled.
@@ -307,6 +362,77 @@ public final class LineageHardwareManager {
         return false;
     }
 
+    /**
+     * Determine the enabled state of several features with a single call.
+     *
+     * Only used for features which have simple enable/disable controls.
+     *
+     * @param mask bitmask of the Lineage Hardware features to query
+     *
+     * @return bitmask of the features in mask which are enabled
+     */
+    public int getFeatureStates(int mask) {
+        if ((mask & ~BOOLEAN_FEATURES_MASK) != 0) {
+            throw new IllegalArgumentException(mask + " contains non-boolean features");
+        }
+
+        try {
+            if (checkService()) {
+                return sService.getFeatureStates(mask);
+            }
+        } catch (RemoteException e) {
+        }
+        return 0;
+    }
+
+    /**
+     * Enable or disable several features with a single call. If any of the
+     * features can not be set, the ones already changed are restored.
+     *
+     * Only used for features which have simple enable/disable controls.
+     *
+     * @param mask bitmask of the Lineage Hardware features to set
+     * @param values bitmask of the features in mask to enable, the others
+     * are disabled
+     *
+     * @return true if all features were set, false otherwise.
+     */
+    public boolean setFeatureStates(int mask, int values) {
+        if ((mask & ~BOOLEAN_FEATURES_MASK) != 0) {
+            throw new IllegalArgumentException(mask + " contains non-boolean features");
+        }
+
+        try {
+            if (checkService()) {
+                return sService.setFeatureStates(mask, values);
+            }
+        } catch (RemoteException e) {
+        }
+        return false;
+    }
+
+    /**
+     * @return the static hardware capabilities, fetched from the service once
+     * and cached afterwards, or null if the service is not available
+     *
+     * @hide
+     */
+    public HardwareCapabilities getCapabilities() {
+        HardwareCapabilities capabilities = sCapabilities;
+        if (capabilities != null) {
+            return capabilities;
+        }
+        try {
+            if (checkService()) {
+                capabilities = sService.getCapabilities();
+                sCapabilities = capabilities;
+                return capabilities;
+            }
+        } catch (RemoteException e) {
+        }
+        return null;
+    }
+
     private int getArrayValue(int[] arr, int idx, int defaultValue) {
         if (arr == null || arr.length <= idx) {
             return defaultValue;
@@ -357,28 +483,32 @@ public final class LineageHardwareManager {
      * @return The default vibrator intensity.
      */
     public int getVibratorDefaultIntensity() {
-        return getArrayValue(getVibratorIntensityArray(), VIBRATOR_DEFAULT_INDEX, 0);
+        final HardwareCapabilities capabilities = getCapabilities();
+        return capabilities != null ? capabilities.getVibratorDefaultIntensity() : 0;
     }
 
     /**
      * @return The minimum vibrator intensity.
      */
     public int getVibratorMinIntensity() {
-        return getArrayValue(getVibratorIntensityArray(), VIBRATOR_MIN_INDEX, 0);
+        final HardwareCapabilities capabilities = getCapabilities();
+        return capabilities != null ? capabilities.getVibratorMinIntensity() : 0;
     }
 
     /**
      * @return The maximum vibrator intensity.
      */
     public int getVibratorMaxIntensity() {
-        return getArrayValue(getVibratorIntensityArray(), VIBRATOR_MAX_INDEX, 0);
+        final HardwareCapabilities capabilities = getCapabilities();
+        return capabilities != null ? capabilities.getVibratorMaxIntensity() : 0;
     }
 
     /**
      * @return The warning threshold vibrator intensity.
      */
     public int getVibratorWarningIntensity() {
-        return getArrayValue(getVibratorIntensityArray(), VIBRATOR_WARNING_INDEX, 0);
+        final HardwareCapabilities capabilities = getCapabilities();
+        return capabilities != null ? capabilities.getVibratorWarningIntensity() : 0;
     }
 
     /**
@@ -449,21 +579,24 @@ public final class LineageHardwareManager {
      * @return the default value for all colors
      */
     public int getDisplayColorCalibrationDefault() {
-        return getArrayValue(getDisplayColorCalibrationArray(), COLOR_CALIBRATION_DEFAULT_INDEX, 0);
+        final HardwareCapabilities capabilities = getCapabilities();
+        return capabilities != null ? capabilities.getColorCalibrationDefault() : 0;
     }
 
     /**
      * @return The minimum value for all colors
      */
     public int getDisplayColorCalibrationMin() {
-        return getArrayValue(getDisplayColorCalibrationArray(), COLOR_CALIBRATION_MIN_INDEX, 0);
+        final HardwareCapabilities capabilities = getCapabilities();
+        return capabilities != null ? capabilities.getColorCalibrationMin() : 0;
     }
 
     /**
      * @return The minimum value for all colors
      */
     public int getDisplayColorCalibrationMax() {
-        return getArrayValue(getDisplayColorCalibrationArray(), COLOR_CALIBRATION_MAX_INDEX, 0);
+        final HardwareCapabilities capabilities = getCapabilities();
+        return capabilities != null ? capabilities.getColorCalibrationMax() : 0;
     }
 
     /**
@@ -485,6 +618,25 @@ public final class LineageHardwareManager {
         return false;
     }
 
+    /**
+     * Set the display color calibration to the given rgb triplet without waiting
+     * for the hardware. Calls are applied in order.
+     *
+     * @param rgb RGB color calibration.  Each value must be between
+     * {@link #getDisplayColorCalibrationMin()} and {@link #getDisplayColorCalibrationMax()},
+     * inclusive.
+     *
+     * @hide
+     */
+    public void setDisplayColorCalibrationAsync(int[] rgb) {
+        try {
+            if (checkService()) {
+                sService.setDisplayColorCalibrationAsync(rgb);
+            }
+        } catch (RemoteException e) {
+        }
+    }
+
     /**
      * {@hide}
      */
@@ -505,6 +657,12 @@ public final class LineageHardwareManager {
      * {@hide}
      */
     public static final int GAMMA_CALIBRATION_MAX_INDEX = 4;
+    /**
+     * Number of values per control in packed gamma calibrations
+     *
+     * {@hide}
+     */
+    public static final int GAMMA_CALIBRATION_STRIDE = 5;
 
     private int[] getDisplayGammaCalibrationArray(int idx) {
         try {
@@ -591,6 +749,47 @@ public final class LineageHardwareManager {
         return false;
     }
 
+    /**
+     * Get the display gamma calibration of all controls with a single call.
+     *
+     * The values of control idx start at idx * {@link #GAMMA_CALIBRATION_STRIDE} and
+     * are laid out as described by the GAMMA_CALIBRATION_*_INDEX constants.
+     *
+     * @return the packed gamma calibrations, or null on failure
+     *
+     * @hide
+     */
+    public int[] getDisplayGammaCalibrations() {
+        try {
+            if (checkService()) {
+                return sService.getDisplayGammaCalibrations();
+            }
+        } catch (RemoteException e) {
+        }
+        return null;
+    }
+
+    /**
+     * Set the display gamma calibration of all controls with a single call.
+     *
+     * @param calibrations the packed gamma calibrations of all controls, laid out as
+     * returned by {@link #getDisplayGammaCalibrations()}. Minimum and maximum values
+     * are ignored.
+     *
+     * @return true on success, false otherwise.
+     *
+     * @hide
+     */
+    public boolean setDisplayGammaCalibrations(int[] calibrations) {
+        try {
+            if (checkService()) {
+                return sService.setDisplayGammaCalibrations(calibrations);
+            }
+        } catch (RemoteException e) {
+        }
+        return false;
+    }
+
     /**
      * @return the source location of LTO data, or null on failure
      */
@@ -674,9 +873,17 @@ public final class LineageHardwareManager {
      * @return a list of available display modes on the devices
      */
     public DisplayMode[] getDisplayModes() {
+        DisplayMode[] modes = sDisplayModes;
+        if (modes != null) {
+            return modes.clone();
+        }
         try {
             if (checkService()) {
-                return sService.getDisplayModes();
+                modes = sService.getDisplayModes();
+                if (modes != null && modes.length > 0) {
+                    sDisplayModes = modes.clone();
+                }
+                return modes;
             }
         } catch (RemoteException e) {
         }
@@ -838,6 +1045,117 @@ public final class LineageHardwareManager {
         return null;
     }
 
+    /**
+     * @return per-feature, per-operation latency and error statistics of the
+     * hardware calls made by the service, along with the number of display color
+     * calibration frames written, skipped by write coalescing and failed to write,
+     * or null on failure
+     *
+     * @hide
+     */
+    public Bundle getCallStatistics() {
+        try {
+            if (checkService()) {
+                return sService.getCallStatistics();
+            }
+        } catch (RemoteException e) {
+        }
+        return null;
+    }
+
+    /**
+     * Registers a {@link HardwareStateListener} to be notified when the state of a
+     * hardware feature or the current display mode changes.
+     *
+     * @param listener {@link HardwareStateListener} to register
+     */
+    public void registerHardwareStateListener(@NonNull HardwareStateListener listener) {
+        if (!checkService()) return;
+
+        synchronized (mStateListeners) {
+            if (mStateListeners.contains(listener)) {
+                throw new IllegalArgumentException("Listener already registered");
+            }
+            if (mStateListeners.size() == 0) {
+                try {
+                    sService.registerStateListener(mStateListener);
+                } catch (RemoteException e) {
+                }
+            }
+            mStateListeners.add(listener);
+        }
+    }
+
+    /**
+     * Unregisters a listener
+     *
+     * @param listener A previously registered {@link HardwareStateListener}
+     */
+    public void unregisterHardwareStateListener(@NonNull HardwareStateListener listener) {
+        if (!checkService()) return;
+
+        synchronized (mStateListeners) {
+            if (!mStateListeners.contains(listener)) {
+                throw new IllegalArgumentException("Listener was never registered");
+            }
+            mStateListeners.remove(listener);
+            if (mStateListeners.size() == 0) {
+                try {
+                    sService.unregisterStateListener(mStateListener);
+                } catch (RemoteException e) {
+                }
+            }
+        }
+    }
+
+    private final IHardwareStateListener mStateListener = new IHardwareStateListener.Stub() {
+        @Override
+        public void onFeatureStateChanged(final int feature, final boolean enabled) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (HardwareStateListener listener : mStateListeners) {
+                        listener.onFeatureStateChanged(feature, enabled);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onDisplayModeChanged(final DisplayMode mode) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (HardwareStateListener listener : mStateListeners) {
+                        listener.onDisplayModeChanged(mode);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * Interface used to be notified when the state of the hardware changes, either
+     * through this manager or by the hardware itself
+     */
+    public interface HardwareStateListener {
+        /**
+         * This method will be called when a feature with a simple enable/disable
+         * control is turned on or off.
+         *
+         * @param feature the Lineage Hardware feature which changed
+         * @param enabled true if the feature is now enabled
+         */
+        void onFeatureStateChanged(int feature, boolean enabled);
+
+        /**
+         * This method will be called when the current display mode changes.
+         *
+         * @param mode the now active display mode
+         */
+        void onDisplayModeChanged(DisplayMode mode);
+    }
+
     /**
      * @return true if service is valid
      */
@@ -135,6 +135,17 @@ public final class Concierge {
             return mParcelableVersion;
         }
 
+        /**
+         * Whether the received {@link Parcel} still holds data that has not been read. This lets
+         * a parcelable append optional fields to its latest version block, as readers that
+         * don't know about them skip them in {@link #complete()}.
+         * @return true if there is unread data within the parcelable
+         * @hide
+         */
+        public boolean hasRemaining() {
+            return !mCreation && mParcel.dataPosition() < mStartPosition + mParcelableSize;
+        }
+
         /**
          * Complete the {@link ParcelInfo} for the Concierge.
          */
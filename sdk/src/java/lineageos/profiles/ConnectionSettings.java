@@ -248,8 +248,11 @@ public final class ConnectionSettings implements Parcelable {
         return mDirty;
     }
 
-    /** @hide */
-    public void processOverride(Context context) {
+    /**
+     * @return true if the device state had to be changed
+     * @hide
+     */
+    public boolean processOverride(Context context) {
         BluetoothAdapter bta = BluetoothAdapter.getDefaultAdapter();
         LocationManager lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
         WifiManager wm = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
@@ -266,11 +269,13 @@ public final class ConnectionSettings implements Parcelable {
 
         boolean forcedState = getValue() == 1;
         boolean currentState;
+        boolean changed = false;
 
         switch (getConnectionId()) {
             case PROFILE_CONNECTION_MOBILEDATA:
                 currentState = tm.getDataEnabled();
                 if (forcedState != currentState) {
+                    changed = true;
                     int phoneCount = tm.getPhoneCount();
                     for (int i = 0; i < phoneCount; i++) {
                         Settings.Global.putInt(context.getContentResolver(),
@@ -286,6 +291,7 @@ public final class ConnectionSettings implements Parcelable {
                     intent.putExtra(EXTRA_NETWORK_MODE, getValue());
                     intent.putExtra(EXTRA_SUB_ID, getSubId());
                     context.sendBroadcast(intent, "com.android.phone.CHANGE_NETWORK_MODE");
+                    changed = true;
                 } else {
                     Intent intent = new Intent(ACTION_MODIFY_NETWORK_MODE);
                     switch(getValue()) {
@@ -306,9 +312,10 @@ public final class ConnectionSettings implements Parcelable {
                                     RILConstants.NETWORK_MODE_LTE_GSM_WCDMA);
                             break;
                         default:
-                            return;
+                            return false;
                     }
                     context.sendBroadcast(intent);
+                    changed = true;
                 }
                 break;
             case PROFILE_CONNECTION_BLUETOOTH:
@@ -316,14 +323,17 @@ public final class ConnectionSettings implements Parcelable {
                 if (forcedState && (btstate == BluetoothAdapter.STATE_OFF
                         || btstate == BluetoothAdapter.STATE_TURNING_OFF)) {
                     bta.enable();
+                    changed = true;
                 } else if (!forcedState && (btstate == BluetoothAdapter.STATE_ON
                         || btstate == BluetoothAdapter.STATE_TURNING_ON)) {
                     bta.disable();
+                    changed = true;
                 }
                 break;
             case PROFILE_CONNECTION_GPS:
                 currentState = lm.isProviderEnabled(LocationManager.GPS_PROVIDER);
                 if (currentState != forcedState) {
+                    changed = true;
                     Settings.Secure.setLocationProviderEnabled(context.getContentResolver(),
                             LocationManager.GPS_PROVIDER, forcedState);
                 }
@@ -331,6 +341,7 @@ public final class ConnectionSettings implements Parcelable {
             case PROFILE_CONNECTION_SYNC:
                 currentState = ContentResolver.getMasterSyncAutomatically();
                 if (forcedState != currentState) {
+                    changed = true;
                     ContentResolver.setMasterSyncAutomatically(forcedState);
                 }
                 break;
@@ -338,6 +349,7 @@ public final class ConnectionSettings implements Parcelable {
                 int wifiApState = wm.getWifiApState();
                 currentState = wm.isWifiEnabled();
                 if (currentState != forcedState) {
+                    changed = true;
                     // Disable wifi tether
                     if (forcedState && (wifiApState == WifiManager.WIFI_AP_STATE_ENABLING) ||
                             (wifiApState == WifiManager.WIFI_AP_STATE_ENABLED)) {
@@ -349,6 +361,7 @@ public final class ConnectionSettings implements Parcelable {
             case PROFILE_CONNECTION_WIFIAP:
                 currentState = wm.isWifiApEnabled();
                 if (currentState != forcedState) {
+                    changed = true;
                     // ConnectivityManager will disable wifi
                     if (forcedState) {
                         cm.startTethering(ConnectivityManager.TETHERING_WIFI,
@@ -366,13 +379,16 @@ public final class ConnectionSettings implements Parcelable {
                     if (currentState != forcedState) {
                         if (forcedState) {
                             nfcAdapter.enable();
+                            changed = true;
                         } else if (!forcedState && adapterState != NfcAdapter.STATE_TURNING_OFF) {
                             nfcAdapter.disable();
+                            changed = true;
                         }
                     }
                 }
                 break;
         }
+        return changed;
     }
 
     /** @hide */
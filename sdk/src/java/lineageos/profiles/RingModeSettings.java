@@ -138,7 +138,9 @@ public final class RingModeSettings implements Parcelable {
                 ringerMode = AudioManager.RINGER_MODE_VIBRATE;
             }
             AudioManager amgr = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
-            amgr.setRingerModeInternal(ringerMode);
+            if (amgr.getRingerModeInternal() != ringerMode) {
+                amgr.setRingerModeInternal(ringerMode);
+            }
         }
     }
 
@@ -19,23 +19,25 @@ package lineageos.weather;
 import android.annotation.NonNull;
 import android.content.ComponentName;
 import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
 import android.location.Location;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
-import android.util.ArraySet;
 import android.util.Log;
 import lineageos.app.LineageContextConstants;
 import lineageos.providers.LineageSettings;
 import lineageos.providers.WeatherContract;
+import lineageos.providers.WeatherContract.WeatherColumns;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Provides access to the weather services in the device.
@@ -45,15 +47,55 @@ public class LineageWeatherManager {
     private static ILineageWeatherManager sWeatherManagerService;
     private static LineageWeatherManager sInstance;
     private Context mContext;
-    private Map<RequestInfo,WeatherUpdateRequestListener> mWeatherUpdateRequestListeners
-            = Collections.synchronizedMap(new HashMap<RequestInfo,WeatherUpdateRequestListener>());
-    private Map<RequestInfo,LookupCityRequestListener> mLookupNameRequestListeners
-            = Collections.synchronizedMap(new HashMap<RequestInfo,LookupCityRequestListener>());
+    // Listeners of the requests in progress and of the periodic updates, keyed by request ID
+    private Map<Integer,WeatherUpdateRequestListener> mWeatherUpdateRequestListeners
+            = new ConcurrentHashMap<>();
+    private Map<Integer,LookupCityRequestListener> mLookupNameRequestListeners
+            = new ConcurrentHashMap<>();
+    private Map<Integer,WeatherUpdateRequestListener> mPeriodicUpdateListeners
+            = new ConcurrentHashMap<>();
     private Handler mHandler;
-    private Set<WeatherServiceProviderChangeListener> mProviderChangedListeners = new ArraySet<>();
+    private Set<WeatherServiceProviderChangeListener> mProviderChangedListeners
+            = new CopyOnWriteArraySet<>();
+
+    // Process-local copy of the weather content provider, see getLastKnownWeather()
+    private final Object mLastKnownWeatherLock = new Object();
+    private volatile boolean mLastKnownWeatherLoaded;
+    private volatile WeatherInfo mLastKnownWeather;
 
     private static final String TAG = LineageWeatherManager.class.getSimpleName();
 
+    private static final String[] WEATHER_PROJECTION = new String[] {
+            WeatherColumns.CURRENT_CITY,
+            WeatherColumns.CURRENT_TEMPERATURE,
+            WeatherColumns.CURRENT_TEMPERATURE_UNIT,
+            WeatherColumns.CURRENT_CONDITION_CODE,
+            WeatherColumns.CURRENT_HUMIDITY,
+            WeatherColumns.CURRENT_WIND_SPEED,
+            WeatherColumns.CURRENT_WIND_DIRECTION,
+            WeatherColumns.CURRENT_WIND_SPEED_UNIT,
+            WeatherColumns.CURRENT_TIMESTAMP,
+            WeatherColumns.TODAYS_HIGH_TEMPERATURE,
+            WeatherColumns.TODAYS_LOW_TEMPERATURE,
+            WeatherColumns.FORECAST_LOW,
+            WeatherColumns.FORECAST_HIGH,
+            WeatherColumns.FORECAST_CONDITION_CODE
+    };
+    private static final int CITY_INDEX = 0;
+    private static final int TEMPERATURE_INDEX = 1;
+    private static final int TEMPERATURE_UNIT_INDEX = 2;
+    private static final int CONDITION_CODE_INDEX = 3;
+    private static final int HUMIDITY_INDEX = 4;
+    private static final int WIND_SPEED_INDEX = 5;
+    private static final int WIND_DIRECTION_INDEX = 6;
+    private static final int WIND_SPEED_UNIT_INDEX = 7;
+    private static final int TIMESTAMP_INDEX = 8;
+    private static final int TODAYS_HIGH_INDEX = 9;
+    private static final int TODAYS_LOW_INDEX = 10;
+    private static final int FORECAST_LOW_INDEX = 11;
+    private static final int FORECAST_HIGH_INDEX = 12;
+    private static final int FORECAST_CONDITION_CODE_INDEX = 13;
+
 
     /**
      * The different request statuses
@@ -149,7 +191,7 @@ public class LineageWeatherManager {
                     .setLocation(location)
                     .setTemperatureUnit(tempUnit)
                     .build();
-            if (listener != null) mWeatherUpdateRequestListeners.put(info, listener);
+            if (listener != null) mWeatherUpdateRequestListeners.put(info.hashCode(), listener);
             sWeatherManagerService.updateWeather(info);
             return info.hashCode();
         } catch (RemoteException e) {
@@ -187,7 +229,7 @@ public class LineageWeatherManager {
                     .setWeatherLocation(weatherLocation)
                     .setTemperatureUnit(tempUnit)
                     .build();
-            if (listener != null) mWeatherUpdateRequestListeners.put(info, listener);
+            if (listener != null) mWeatherUpdateRequestListeners.put(info.hashCode(), listener);
             sWeatherManagerService.updateWeather(info);
             return info.hashCode();
         } catch (RemoteException e) {
@@ -195,6 +237,194 @@ public class LineageWeatherManager {
         }
     }
 
+    /**
+     * Gets the weather information currently stored in the weather content provider, without
+     * triggering a weather update. The weather content provider is queried only once per process,
+     * the first time this method is called. Afterwards a local copy is kept current by observing
+     * the provider, so this method returns right away. If the provider can't be observed, it is
+     * queried on every call.
+     *
+     * Requires the {@link lineageos.platform.Manifest.permission#READ_WEATHER} permission.
+     *
+     * @return The last known {@link WeatherInfo}, or null if no weather information is available
+     */
+    public WeatherInfo getLastKnownWeather() {
+        if (!mLastKnownWeatherLoaded) {
+            synchronized (mLastKnownWeatherLock) {
+                if (!mLastKnownWeatherLoaded) {
+                    try {
+                        mContext.getContentResolver().registerContentObserver(
+                                WeatherColumns.CURRENT_AND_FORECAST_WEATHER_URI, false,
+                                mWeatherObserver);
+                    } catch (SecurityException e) {
+                        //Without an observer the local copy can't be kept current
+                        Log.w(TAG, "Unable to observe the weather content provider", e);
+                        return queryLastKnownWeather();
+                    }
+                    mLastKnownWeather = queryLastKnownWeather();
+                    mLastKnownWeatherLoaded = true;
+                }
+            }
+        }
+        return mLastKnownWeather;
+    }
+
+    // Without a handler, changes are delivered on a binder thread
+    private final ContentObserver mWeatherObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mLastKnownWeather = queryLastKnownWeather();
+        }
+    };
+
+    private WeatherInfo queryLastKnownWeather() {
+        final Cursor c;
+        try {
+            c = mContext.getContentResolver().query(
+                    WeatherColumns.CURRENT_AND_FORECAST_WEATHER_URI, WEATHER_PROJECTION,
+                    null, null, null);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Unable to query the weather content provider", e);
+            return null;
+        }
+        if (c == null) return null;
+
+        try {
+            //The first row holds the current weather, the rest the forecast
+            if (!c.moveToFirst() || c.isNull(CITY_INDEX) || c.isNull(TEMPERATURE_INDEX)) {
+                return null;
+            }
+            WeatherInfo.Builder builder = new WeatherInfo.Builder(c.getString(CITY_INDEX),
+                    c.getDouble(TEMPERATURE_INDEX), c.getInt(TEMPERATURE_UNIT_INDEX))
+                    .setWeatherCondition(c.getInt(CONDITION_CODE_INDEX))
+                    .setTimestamp(c.getLong(TIMESTAMP_INDEX));
+            if (!c.isNull(HUMIDITY_INDEX)) {
+                builder.setHumidity(c.getDouble(HUMIDITY_INDEX));
+            }
+            if (!c.isNull(WIND_SPEED_INDEX) && !c.isNull(WIND_DIRECTION_INDEX)) {
+                builder.setWind(c.getDouble(WIND_SPEED_INDEX), c.getDouble(WIND_DIRECTION_INDEX),
+                        c.getInt(WIND_SPEED_UNIT_INDEX));
+            }
+            if (!c.isNull(TODAYS_HIGH_INDEX)) {
+                builder.setTodaysHigh(c.getDouble(TODAYS_HIGH_INDEX));
+            }
+            if (!c.isNull(TODAYS_LOW_INDEX)) {
+                builder.setTodaysLow(c.getDouble(TODAYS_LOW_INDEX));
+            }
+
+            List<WeatherInfo.DayForecast> forecasts = new ArrayList<>(c.getCount() - 1);
+            while (c.moveToNext()) {
+                WeatherInfo.DayForecast.Builder forecast = new WeatherInfo.DayForecast.Builder(
+                        c.getInt(FORECAST_CONDITION_CODE_INDEX));
+                if (!c.isNull(FORECAST_LOW_INDEX)) {
+                    forecast.setLow(c.getDouble(FORECAST_LOW_INDEX));
+                }
+                if (!c.isNull(FORECAST_HIGH_INDEX)) {
+                    forecast.setHigh(c.getDouble(FORECAST_HIGH_INDEX));
+                }
+                forecasts.add(forecast.build());
+            }
+            return builder.setForecast(forecasts).build();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid data in the weather content provider", e);
+            return null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Subscribes to periodic weather updates for the supplied {@link android.location.Location}.
+     * The weather service aligns the refreshes of all its subscribers, so a single update serves
+     * every subscription due at about the same time. The first update is delivered right away.
+     *
+     * @param location The location you want to get weather updates for
+     * @param freshnessWindowMillis The maximum age, in milliseconds, the weather data delivered
+     *                              to the listener should reach before it is refreshed. The
+     *                              weather service might enforce a minimum window
+     * @param listener {@link WeatherUpdateRequestListener} To be notified every time the weather
+     *                                                     has been refreshed, until
+     *                                                     {@link #removePeriodicWeatherUpdates(int)}
+     *                                                     is called
+     * @return An integer that identifies the subscription.
+     * Note that this method might return -1 if an error occurred while trying to subscribe
+     */
+    public int requestPeriodicWeatherUpdates(@NonNull Location location,
+            long freshnessWindowMillis, @NonNull WeatherUpdateRequestListener listener) {
+        if (sWeatherManagerService == null) {
+            return -1;
+        }
+
+        RequestInfo info = new RequestInfo
+                .Builder(mRequestInfoListener)
+                .setLocation(location)
+                .setTemperatureUnit(getTemperatureUnit())
+                .build();
+        return subscribeWeatherUpdates(info, freshnessWindowMillis, listener);
+    }
+
+    /**
+     * Subscribes to periodic weather updates for the supplied WeatherLocation. See
+     * {@link #requestPeriodicWeatherUpdates(Location, long, WeatherUpdateRequestListener)}
+     *
+     * @param weatherLocation A {@link lineageos.weather.WeatherLocation} that was previously
+     *                        obtained by calling
+     *                        {@link #lookupCity(String, LookupCityRequestListener)}
+     * @param freshnessWindowMillis The maximum age, in milliseconds, the weather data delivered
+     *                              to the listener should reach before it is refreshed
+     * @param listener {@link WeatherUpdateRequestListener} To be notified every time the weather
+     *                                                     has been refreshed
+     * @return An integer that identifies the subscription.
+     * Note that this method might return -1 if an error occurred while trying to subscribe
+     */
+    public int requestPeriodicWeatherUpdates(@NonNull WeatherLocation weatherLocation,
+            long freshnessWindowMillis, @NonNull WeatherUpdateRequestListener listener) {
+        if (sWeatherManagerService == null) {
+            return -1;
+        }
+
+        RequestInfo info = new RequestInfo
+                .Builder(mRequestInfoListener)
+                .setWeatherLocation(weatherLocation)
+                .setTemperatureUnit(getTemperatureUnit())
+                .build();
+        return subscribeWeatherUpdates(info, freshnessWindowMillis, listener);
+    }
+
+    /**
+     * Stops the periodic weather updates of a subscription.
+     * @param requestId The ID that you received when subscribing
+     */
+    public void removePeriodicWeatherUpdates(int requestId) {
+        if (sWeatherManagerService == null) {
+            return;
+        }
+
+        mPeriodicUpdateListeners.remove(requestId);
+        try {
+            sWeatherManagerService.unsubscribeWeatherUpdates(requestId);
+        } catch (RemoteException e) {
+        }
+    }
+
+    private int subscribeWeatherUpdates(RequestInfo info, long freshnessWindowMillis,
+            WeatherUpdateRequestListener listener) {
+        try {
+            if (listener != null) mPeriodicUpdateListeners.put(info.hashCode(), listener);
+            sWeatherManagerService.subscribeWeatherUpdates(info, freshnessWindowMillis);
+            return info.hashCode();
+        } catch (RemoteException e) {
+            mPeriodicUpdateListeners.remove(info.hashCode());
+            return -1;
+        }
+    }
+
+    private int getTemperatureUnit() {
+        return LineageSettings.Global.getInt(mContext.getContentResolver(),
+                LineageSettings.Global.WEATHER_TEMPERATURE_UNIT,
+                WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
+    }
+
     /**
      * Request the active weather provider service to lookup the supplied city name.
      *
@@ -216,7 +446,7 @@ public class LineageWeatherManager {
                     .Builder(mRequestInfoListener)
                     .setCityName(city)
                     .build();
-            if (listener != null) mLookupNameRequestListeners.put(info, listener);
+            if (listener != null) mLookupNameRequestListeners.put(info.hashCode(), listener);
             sWeatherManagerService.lookupCity(info);
             return info.hashCode();
         } catch (RemoteException e) {
@@ -233,6 +463,9 @@ public class LineageWeatherManager {
             return;
         }
 
+        //The request won't be reported back anymore
+        mWeatherUpdateRequestListeners.remove(requestId);
+        mLookupNameRequestListeners.remove(requestId);
         try {
             sWeatherManagerService.cancelRequest(requestId);
         }catch (RemoteException e){
@@ -307,21 +540,13 @@ public class LineageWeatherManager {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    synchronized (mProviderChangedListeners) {
-                        List<WeatherServiceProviderChangeListener> deadListeners
-                                = new ArrayList<>();
-                        for (WeatherServiceProviderChangeListener listener
-                                : mProviderChangedListeners) {
-                            try {
-                                listener.onWeatherServiceProviderChanged(providerName);
-                            } catch (Throwable e) {
-                                deadListeners.add(listener);
-                            }
-                        }
-                        if (deadListeners.size() > 0) {
-                            for (WeatherServiceProviderChangeListener listener : deadListeners) {
-                                mProviderChangedListeners.remove(listener);
-                            }
+                    //Iterates over a snapshot, listeners can be removed meanwhile
+                    for (WeatherServiceProviderChangeListener listener
+                            : mProviderChangedListeners) {
+                        try {
+                            listener.onWeatherServiceProviderChanged(providerName);
+                        } catch (Throwable e) {
+                            mProviderChangedListeners.remove(listener);
                         }
                     }
                 }
@@ -334,13 +559,18 @@ public class LineageWeatherManager {
         @Override
         public void onWeatherRequestCompleted(final RequestInfo requestInfo, final int status,
                 final WeatherInfo weatherInfo) {
-            final WeatherUpdateRequestListener listener
-                    = mWeatherUpdateRequestListeners.remove(requestInfo);
+            final int requestId = requestInfo.hashCode();
+            WeatherUpdateRequestListener listener
+                    = mWeatherUpdateRequestListeners.remove(requestId);
+            if (listener == null) {
+                listener = mPeriodicUpdateListeners.get(requestId);
+            }
             if (listener != null) {
+                final WeatherUpdateRequestListener updateListener = listener;
                 mHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        listener.onWeatherRequestCompleted(status, weatherInfo);
+                        updateListener.onWeatherRequestCompleted(status, weatherInfo);
                     }
                 });
             }
@@ -351,7 +581,7 @@ public class LineageWeatherManager {
             final List<WeatherLocation> weatherLocations) {
 
             final LookupCityRequestListener listener
-                    = mLookupNameRequestListeners.remove(requestInfo);
+                    = mLookupNameRequestListeners.remove(requestInfo.hashCode());
             if (listener != null) {
                 mHandler.post(new Runnable() {
                     @Override
@@ -41,6 +41,8 @@ public final class RequestInfo implements Parcelable {
     private int mTempUnit;
     private String mKey;
     private boolean mIsQueryOnly;
+    // Whether the sender of this request can read WeatherInfo objects with compact forecasts
+    private boolean mSupportsCompactForecasts;
 
     /**
      * A request to update the weather data using a geographical {@link android.location.Location}
@@ -171,6 +173,7 @@ public final class RequestInfo implements Parcelable {
             info.mLocation = this.mLocation;
             info.mTempUnit = this.mTempUnit;
             info.mIsQueryOnly = this.mIsQueryOnly;
+            info.mSupportsCompactForecasts = true;
             info.mKey = UUID.randomUUID().toString();
             return info;
         }
@@ -210,6 +213,8 @@ public final class RequestInfo implements Parcelable {
             }
             mIsQueryOnly = (parcel.readInt() == 1);
             mListener = IRequestInfoListener.Stub.asInterface(parcel.readStrongBinder());
+            // Optional, not written by older senders
+            mSupportsCompactForecasts = parcelInfo.hasRemaining() && parcel.readInt() == 1;
         }
 
         // Complete parcel info for the concierge
@@ -267,6 +272,15 @@ public final class RequestInfo implements Parcelable {
         }
     }
 
+    /**
+     * @return true if the sender of this request can read a {@link WeatherInfo} parcelled with
+     * compact forecasts. See {@link WeatherInfo#withCompactForecasts(boolean)}
+     * @hide
+     */
+    public boolean supportsCompactForecasts() {
+        return mSupportsCompactForecasts;
+    }
+
     /**
      * @return if this is a weather request, whether the request will update the content provider.
      * False for other kind of requests
@@ -322,6 +336,7 @@ public final class RequestInfo implements Parcelable {
         }
         dest.writeInt(mIsQueryOnly == true ? 1 : 0);
         dest.writeStrongBinder(mListener.asBinder());
+        dest.writeInt(mSupportsCompactForecasts ? 1 : 0);
 
         // Complete parcel info for the concierge
         parcelInfo.complete();
@@ -56,6 +56,11 @@ public final class WeatherInfo implements Parcelable {
     private long mTimestamp;
     private List<DayForecast> mForecastList;
     private String mKey;
+    // Not parcelled, only tells how the forecasts are written
+    private boolean mCompactForecasts;
+
+    // Written in place of the forecast count when the forecasts are parcelled as columns
+    private static final int COMPACT_FORECASTS = -1;
 
     private WeatherInfo() {}
 
@@ -366,10 +371,14 @@ public final class WeatherInfo implements Parcelable {
             mTodaysLowTemp = parcel.readDouble();
             mTimestamp = parcel.readLong();
             int forecastListSize = parcel.readInt();
-            mForecastList = new ArrayList<>();
-            while (forecastListSize > 0) {
-                mForecastList.add(DayForecast.CREATOR.createFromParcel(parcel));
-                forecastListSize--;
+            if (forecastListSize == COMPACT_FORECASTS) {
+                readCompactForecasts(parcel);
+            } else {
+                mForecastList = new ArrayList<>();
+                while (forecastListSize > 0) {
+                    mForecastList.add(DayForecast.CREATOR.createFromParcel(parcel));
+                    forecastListSize--;
+                }
             }
         }
 
@@ -377,6 +386,69 @@ public final class WeatherInfo implements Parcelable {
         parcelInfo.complete();
     }
 
+    /**
+     * Forecasts written as parallel arrays of lows, highs and condition codes, without the
+     * per forecast parcel header and key.
+     */
+    private void writeCompactForecasts(Parcel dest) {
+        final int size = mForecastList.size();
+        final double[] lows = new double[size];
+        final double[] highs = new double[size];
+        final int[] conditionCodes = new int[size];
+        for (int i = 0; i < size; i++) {
+            final DayForecast forecast = mForecastList.get(i);
+            lows[i] = forecast.mLow;
+            highs[i] = forecast.mHigh;
+            conditionCodes[i] = forecast.mConditionCode;
+        }
+        dest.writeDoubleArray(lows);
+        dest.writeDoubleArray(highs);
+        dest.writeIntArray(conditionCodes);
+    }
+
+    private void readCompactForecasts(Parcel parcel) {
+        final double[] lows = parcel.createDoubleArray();
+        final double[] highs = parcel.createDoubleArray();
+        final int[] conditionCodes = parcel.createIntArray();
+        mForecastList = new ArrayList<>(lows.length);
+        for (int i = 0; i < lows.length; i++) {
+            final DayForecast forecast = new DayForecast();
+            forecast.mLow = lows[i];
+            forecast.mHigh = highs[i];
+            forecast.mConditionCode = conditionCodes[i];
+            // Keys only need to be unique, derive them from ours
+            forecast.mKey = mKey + "/" + i;
+            mForecastList.add(forecast);
+        }
+    }
+
+    /**
+     * Returns a copy of this object which parcels its forecasts as columns when {@code compact}
+     * is true. This is much smaller for long forecasts, but can only be read by receivers that
+     * support it, see {@link RequestInfo#supportsCompactForecasts()}.
+     * @hide
+     */
+    public WeatherInfo withCompactForecasts(boolean compact) {
+        if (compact == mCompactForecasts) return this;
+
+        WeatherInfo info = new WeatherInfo();
+        info.mCity = mCity;
+        info.mConditionCode = mConditionCode;
+        info.mTemperature = mTemperature;
+        info.mTempUnit = mTempUnit;
+        info.mHumidity = mHumidity;
+        info.mWindSpeed = mWindSpeed;
+        info.mWindDirection = mWindDirection;
+        info.mWindSpeedUnit = mWindSpeedUnit;
+        info.mTimestamp = mTimestamp;
+        info.mForecastList = mForecastList;
+        info.mTodaysHighTemp = mTodaysHighTemp;
+        info.mTodaysLowTemp = mTodaysLowTemp;
+        info.mKey = mKey;
+        info.mCompactForecasts = compact;
+        return info;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -400,9 +472,14 @@ public final class WeatherInfo implements Parcelable {
         dest.writeDouble(mTodaysHighTemp);
         dest.writeDouble(mTodaysLowTemp);
         dest.writeLong(mTimestamp);
-        dest.writeInt(mForecastList.size());
-        for (DayForecast dayForecast : mForecastList) {
-            dayForecast.writeToParcel(dest, 0);
+        if (mCompactForecasts) {
+            dest.writeInt(COMPACT_FORECASTS);
+            writeCompactForecasts(dest);
+        } else {
+            dest.writeInt(mForecastList.size());
+            for (DayForecast dayForecast : mForecastList) {
+                dayForecast.writeToParcel(dest, 0);
+            }
         }
 
         // Complete parcel info for the concierge
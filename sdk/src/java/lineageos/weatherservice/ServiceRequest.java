@@ -28,18 +28,40 @@ public final class ServiceRequest {
 
     private final RequestInfo mInfo;
     private final IWeatherProviderServiceClient mClient;
+    private final OnFinishedListener mOnFinishedListener;
+
+    /* package */ interface OnFinishedListener {
+        /**
+         * Called once the request has been completed, failed or rejected by the service
+         */
+        void onFinished(ServiceRequest request);
+    }
 
     private enum Status {
         IN_PROGRESS, COMPLETED, CANCELLED, FAILED, REJECTED
     }
     private Status mStatus;
 
-    /* package */ ServiceRequest(RequestInfo info, IWeatherProviderServiceClient client) {
+    /* package */ ServiceRequest(RequestInfo info, IWeatherProviderServiceClient client,
+            OnFinishedListener onFinishedListener) {
         mInfo = info;
         mClient = client;
+        mOnFinishedListener = onFinishedListener;
         mStatus = Status.IN_PROGRESS;
     }
 
+    /* package */ boolean isCancelled() {
+        synchronized (this) {
+            return mStatus.equals(Status.CANCELLED);
+        }
+    }
+
+    private void notifyFinished() {
+        if (mOnFinishedListener != null) {
+            mOnFinishedListener.onFinished(this);
+        }
+    }
+
     /**
      * Obtains the request information
      * @return {@link lineageos.weather.RequestInfo}
@@ -63,6 +85,11 @@ public final class ServiceRequest {
                                 throw new IllegalStateException("The service request result doesn't"
                                         + " contain a valid WeatherInfo object");
                             }
+                            if (mInfo.supportsCompactForecasts()) {
+                                result = new ServiceRequestResult.Builder(
+                                        result.getWeatherInfo().withCompactForecasts(true))
+                                        .build();
+                            }
                             mClient.setServiceRequestState(mInfo, result,
                                     LineageWeatherManager.RequestStatus.COMPLETED);
                             break;
@@ -82,8 +109,11 @@ public final class ServiceRequest {
                 } catch (RemoteException e) {
                 }
                 mStatus = Status.COMPLETED;
+            } else {
+                return;
             }
         }
+        notifyFinished();
     }
 
     /**
@@ -109,8 +139,11 @@ public final class ServiceRequest {
                 } catch (RemoteException e) {
                 }
                 mStatus = Status.FAILED;
+            } else {
+                return;
             }
         }
+        notifyFinished();
     }
 
     /**
@@ -139,8 +172,11 @@ public final class ServiceRequest {
                         throw new IllegalArgumentException("Can't reject with status " + status);
                 }
                 mStatus = Status.REJECTED;
+            } else {
+                return;
             }
         }
+        notifyFinished();
     }
 
     /**
@@ -24,11 +24,15 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import lineageos.weather.RequestInfo;
 
-import java.util.Collections;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is the base class for implementing a weather provider service. A weather provider service
@@ -57,10 +61,22 @@ import java.util.WeakHashMap;
  */
 public abstract class WeatherProviderService extends Service {
 
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
     private Handler mHandler;
+    private ThreadPoolExecutor mExecutor;
     private IWeatherProviderServiceClient mClient;
-    private Set<ServiceRequest> mWeakRequestsSet
-            = Collections.newSetFromMap(new WeakHashMap<ServiceRequest, Boolean>());
+    // Requests in progress, indexed by request ID. Dropped once the system disconnects
+    private final ConcurrentHashMap<Integer, ServiceRequest> mRequests
+            = new ConcurrentHashMap<>();
+
+    private final ServiceRequest.OnFinishedListener mOnRequestFinishedListener
+            = new ServiceRequest.OnFinishedListener() {
+        @Override
+        public void onFinished(ServiceRequest request) {
+            mRequests.remove(request.getRequestInfo().hashCode(), request);
+        }
+    };
 
     /**
      * The {@link android.content.Intent} action that must be declared as handled by a service in
@@ -82,6 +98,23 @@ public abstract class WeatherProviderService extends Service {
     protected final void attachBaseContext(Context base) {
         super.attachBaseContext(base);
         mHandler = new ServiceHandler(base.getMainLooper());
+
+        final int poolSize = getRequestThreadPoolSize();
+        if (poolSize > 0) {
+            mExecutor = new ThreadPoolExecutor(poolSize, poolSize, WORKER_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new WorkerThreadFactory(getClass().getSimpleName()));
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+        mRequests.clear();
     }
 
     @Override
@@ -108,32 +141,42 @@ public abstract class WeatherProviderService extends Service {
 
         @Override
         public void cancelOngoingRequests() {
-            synchronized (mWeakRequestsSet) {
-                for (final ServiceRequest request : mWeakRequestsSet) {
-                    request.cancel();
-                    mWeakRequestsSet.remove(request);
-                    mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request)
-                            .sendToTarget();
-                }
+            for (Integer requestId : mRequests.keySet()) {
+                cancelRequest(requestId);
             }
         }
 
         @Override
         public void cancelRequest(int requestId) {
-            synchronized (mWeakRequestsSet) {
-                for (final ServiceRequest request : mWeakRequestsSet) {
-                    if (request.getRequestInfo().hashCode() == requestId) {
-                        mWeakRequestsSet.remove(request);
-                        request.cancel();
-                        mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request)
-                                .sendToTarget();
-                        break;
-                    }
-                }
+            final ServiceRequest request = mRequests.remove(requestId);
+            if (request != null) {
+                request.cancel();
+                mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request)
+                        .sendToTarget();
             }
         }
     };
 
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+        private final String mName;
+
+        WorkerThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + "-" + mCount.incrementAndGet());
+        }
+    }
+
     private class ServiceHandler extends Handler {
 
         public ServiceHandler(Looper looper) {
@@ -151,6 +194,9 @@ public abstract class WeatherProviderService extends Service {
                     if (mClient != null) {
                         onConnected();
                     } else {
+                        // Nobody will cancel the requests left behind by the system anymore,
+                        // so stop tracking them in case the provider never finishes them
+                        mRequests.clear();
                         onDisconnected();
                     }
                     return;
@@ -158,11 +204,22 @@ public abstract class WeatherProviderService extends Service {
                 case MSG_ON_NEW_REQUEST: {
                     RequestInfo info = (RequestInfo) msg.obj;
                     if (info != null) {
-                        ServiceRequest request = new ServiceRequest(info, mClient);
-                        synchronized (mWeakRequestsSet) {
-                            mWeakRequestsSet.add(request);
+                        final ServiceRequest request = new ServiceRequest(info, mClient,
+                                mOnRequestFinishedListener);
+                        mRequests.put(info.hashCode(), request);
+                        if (mExecutor != null) {
+                            mExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    //It might have been cancelled while waiting for a worker
+                                    if (!request.isCancelled()) {
+                                        onRequestSubmitted(request);
+                                    }
+                                }
+                            });
+                        } else {
+                            onRequestSubmitted(request);
                         }
-                        onRequestSubmitted(request);
                     }
                     return;
                 }
@@ -189,6 +246,22 @@ public abstract class WeatherProviderService extends Service {
         /* Do nothing */
     }
 
+    /**
+     * Returns the number of worker threads used to process requests. By default this method
+     * returns 0 and {@link #onRequestSubmitted(ServiceRequest)} is called on the main thread of
+     * the service, one request at a time. Services doing blocking work, such as network access
+     * or parsing, can return a positive value to have requests submitted concurrently on a pool
+     * of worker threads of that size. In that case {@link #onRequestSubmitted(ServiceRequest)}
+     * must be thread safe. {@link #onConnected()}, {@link #onDisconnected()} and
+     * {@link #onRequestCancelled(ServiceRequest)} are always called on the main thread.
+     *
+     * This method is called once, when the service is attached to its base context.
+     * @return The number of worker threads, or 0 to process requests on the main thread
+     */
+    protected int getRequestThreadPoolSize() {
+        return 0;
+    }
+
     /**
      * A new request has been submitted to this service
      * @param request The service request to be processed by this service
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.internal.util;
+
+import android.util.ArrayMap;
+
+import lineageos.hardware.DisplayMode;
+
+import java.util.ArrayList;
+
+/**
+ * Renames the display modes reported by the hardware according to the
+ * device configuration, optionally dropping the modes which are not mapped.
+ */
+public final class DisplayModeMappings {
+
+    private final ArrayMap<String, String> mMappings = new ArrayMap<String, String>();
+    private final boolean mFilter;
+
+    /**
+     * @param mappings the mappings, one "name:new name" entry per mode
+     * @param filter whether modes without a mapping should be dropped
+     */
+    public DisplayModeMappings(String[] mappings, boolean filter) {
+        if (mappings != null) {
+            for (String mapping : mappings) {
+                String[] split = mapping.split(":");
+                if (split.length == 2) {
+                    mMappings.put(split[0], split[1]);
+                }
+            }
+        }
+        mFilter = filter;
+    }
+
+    /**
+     * @return the remapped mode, or null if the mode is null or filtered out
+     */
+    public DisplayMode remap(DisplayMode in) {
+        if (in == null) {
+            return null;
+        }
+        if (mMappings.containsKey(in.name)) {
+            return new DisplayMode(in.id, mMappings.get(in.name));
+        }
+        if (!mFilter) {
+            return in;
+        }
+        return null;
+    }
+
+    /**
+     * @return the remapped modes without the filtered out ones, or null if modes is null
+     */
+    public DisplayMode[] remap(DisplayMode[] modes) {
+        if (modes == null) {
+            return null;
+        }
+        final ArrayList<DisplayMode> remapped = new ArrayList<DisplayMode>(modes.length);
+        for (DisplayMode mode : modes) {
+            DisplayMode r = remap(mode);
+            if (r != null) {
+                remapped.add(r);
+            }
+        }
+        return remapped.toArray(new DisplayMode[remapped.size()]);
+    }
+}
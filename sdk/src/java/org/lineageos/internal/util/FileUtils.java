@@ -38,6 +38,7 @@ public final class FileUtils {
     /**
      * Reads the first line of text from the given file.
      * Reference {@link BufferedReader#readLine()} for clarification on what a line is
+     * Use {@link SysfsNode} for nodes which are read repeatedly
      *
      * @return the read line contents, or null on failure
      */
@@ -67,6 +68,7 @@ public final class FileUtils {
 
     /**
      * Writes the given value into the given file
+     * Use {@link SysfsNode} for nodes which are written repeatedly
      *
      * @return true on success, false on failure
      */
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.internal.util;
+
+import android.util.ArrayMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tracks the requests forwarded to a slow backend, so identical requests arriving
+ * while one is being processed wait for its result instead of being forwarded again.
+ *
+ * Requests are identified by their key, and by their hash code when cancelled.
+ * This class is not thread safe.
+ */
+public final class InFlightRequests<T> {
+
+    /**
+     * A forwarded request, along with the identical requests that arrived while it
+     * was being processed and will be answered with its result.
+     */
+    private static final class Entry<T> {
+        final T request;
+        final long timestamp;
+        final List<T> waiters = new ArrayList<>();
+        // The request was cancelled by its owner but kept alive for the waiters
+        boolean cancelled;
+
+        Entry(T request_, long timestamp_) {
+            request = request_;
+            timestamp = timestamp_;
+        }
+    }
+
+    private final ArrayMap<String, Entry<T>> mEntries = new ArrayMap<>();
+    private final long mTimeoutMs;
+    private int mCoalescedRequests;
+
+    /**
+     * @param timeoutMs how long a forwarded request can be joined by identical ones,
+     * so a backend that never answers can't stall later requests
+     */
+    public InFlightRequests(long timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Registers a request about to be forwarded, unless an identical one is in flight.
+     *
+     * If an identical request has been in flight for longer than the timeout, the new
+     * request replaces it and takes over its waiters.
+     *
+     * @param key the key of the request
+     * @param request the request
+     * @param now the current time, in the time base of the timeout
+     * @return true if the request has to be forwarded, false if it waits for the result of
+     * an identical request
+     */
+    public boolean begin(String key, T request, long now) {
+        final Entry<T> inFlight = mEntries.get(key);
+        if (inFlight != null && now - inFlight.timestamp < mTimeoutMs) {
+            inFlight.waiters.add(request);
+            mCoalescedRequests++;
+            return false;
+        }
+        final Entry<T> entry = new Entry<>(request, now);
+        if (inFlight != null) {
+            //The stale request never got an answer, its waiters get the new one
+            entry.waiters.addAll(inFlight.waiters);
+        }
+        mEntries.put(key, entry);
+        return true;
+    }
+
+    /**
+     * Returns the requests to be answered with the result of the given request: the request
+     * itself, unless cancelled, followed by the identical requests waiting for it.
+     */
+    public List<T> complete(String key, T request) {
+        final List<T> requests = new ArrayList<>();
+        final Entry<T> inFlight = key != null ? mEntries.get(key) : null;
+        if (inFlight != null && inFlight.request.equals(request)) {
+            mEntries.remove(key);
+            if (!inFlight.cancelled) {
+                requests.add(request);
+            }
+            requests.addAll(inFlight.waiters);
+        } else {
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    /**
+     * Drops the given request after it could not be forwarded.
+     *
+     * @return the requests that were waiting for its result
+     */
+    public List<T> abort(String key, T request) {
+        final Entry<T> inFlight = mEntries.get(key);
+        if (inFlight == null || !inFlight.request.equals(request)) {
+            return Collections.emptyList();
+        }
+        mEntries.remove(key);
+        return inFlight.waiters;
+    }
+
+    /**
+     * Cancels the request with the given hash code.
+     *
+     * A forwarded request that others wait for is kept running, only its owner is not
+     * answered anymore. A waiting request is simply dropped.
+     *
+     * @return true if the cancellation has to be forwarded to the backend
+     */
+    public boolean cancel(int requestId) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            final Entry<T> inFlight = mEntries.valueAt(i);
+            if (inFlight.request.hashCode() == requestId) {
+                if (!inFlight.waiters.isEmpty()) {
+                    //Other clients still wait for this result, let the backend finish
+                    inFlight.cancelled = true;
+                    return false;
+                }
+                mEntries.removeAt(i);
+                return true;
+            }
+            for (int j = 0; j < inFlight.waiters.size(); j++) {
+                if (inFlight.waiters.get(j).hashCode() == requestId) {
+                    //Never reached the backend
+                    inFlight.waiters.remove(j);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * @return the number of requests currently in flight
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return the number of requests which waited for an identical one so far
+     */
+    public int getCoalescedCount() {
+        return mCoalescedRequests;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.internal.util;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A persistent handle to a single sysfs node.
+ *
+ * Unlike {@link FileUtils#readOneLine(String)} and {@link FileUtils#writeLine(String, String)},
+ * the file descriptor is kept open between accesses and the node is always read and written
+ * at offset 0 with pread/pwrite into a reusable buffer. This makes it suitable for nodes
+ * which are polled or written many times per second, e.g. during display animations.
+ *
+ * If the node can not be opened or an access fails, the descriptor is closed and that
+ * access falls back to {@link FileUtils}. The node is reopened on the next access.
+ */
+public final class SysfsNode {
+    private static final String TAG = "SysfsNode";
+
+    // sysfs attributes are at most one page, but the values we care about are short
+    private static final int BUFFER_SIZE = 512;
+
+    private final String mPath;
+    // sysfs and procfs replace the whole value on write, other files need truncating
+    private final boolean mTruncate;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    private FileDescriptor mFd;
+    private int mAccessMode;
+
+    public SysfsNode(String path) {
+        mPath = path;
+        mTruncate = !path.startsWith("/sys/") && !path.startsWith("/proc/");
+    }
+
+    /**
+     * @return the path of this node
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Reads the first line of text from the node.
+     *
+     * @return the read line contents, or null on failure
+     */
+    public synchronized String readOneLine() {
+        if (open(OsConstants.O_RDONLY)) {
+            try {
+                final int count = Os.pread(mFd, mBuffer, 0, mBuffer.length, 0);
+                if (count <= 0) {
+                    // Nothing to read, same as BufferedReader#readLine()
+                    return null;
+                }
+                int end = 0;
+                while (end < count && mBuffer[end] != '\n' && mBuffer[end] != '\r') {
+                    end++;
+                }
+                return new String(mBuffer, 0, end, StandardCharsets.UTF_8);
+            } catch (ErrnoException | IOException e) {
+                Log.w(TAG, "Could not read from " + mPath + ", falling back", e);
+            }
+            close();
+        }
+        return FileUtils.readOneLine(mPath);
+    }
+
+    /**
+     * Writes the given value into the node.
+     *
+     * @return true on success, false on failure
+     */
+    public synchronized boolean writeLine(String value) {
+        final int length = encode(value);
+        if (length >= 0 && open(OsConstants.O_WRONLY)) {
+            try {
+                if (Os.pwrite(mFd, mBuffer, 0, length, 0) == length) {
+                    if (mTruncate) {
+                        Os.ftruncate(mFd, length);
+                    }
+                    return true;
+                }
+                Log.w(TAG, "Short write to " + mPath + ", falling back");
+            } catch (ErrnoException | IOException e) {
+                Log.w(TAG, "Could not write to " + mPath + ", falling back", e);
+            }
+            close();
+        }
+        return FileUtils.writeLine(mPath, value);
+    }
+
+    /**
+     * Parses a whitespace delimited list of decimal integers, as found in many sysfs
+     * nodes, into the given array without allocating.
+     *
+     * @param value the string to parse
+     * @param out the array to store the parsed values in
+     * @param offset the index in out to store the first value at
+     * @param count the maximum number of values to parse
+     * @return the number of parsed values, or -1 if value is null, holds something else
+     * than integers or holds more than count values
+     */
+    public static int parseInts(String value, int[] out, int offset, int count) {
+        if (value == null || offset < 0 || count < 0 || offset + count > out.length) {
+            return -1;
+        }
+        final int length = value.length();
+        int parsed = 0;
+        int i = 0;
+        while (true) {
+            while (i < length && Character.isWhitespace(value.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                return parsed;
+            }
+            if (parsed == count) {
+                return -1;
+            }
+            final boolean negative = value.charAt(i) == '-';
+            if (negative) {
+                i++;
+            }
+            final int start = i;
+            long number = 0;
+            while (i < length && !Character.isWhitespace(value.charAt(i))) {
+                final int digit = value.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return -1;
+                }
+                number = number * 10 + digit;
+                if (number > (long) Integer.MAX_VALUE + 1) {
+                    return -1;
+                }
+                i++;
+            }
+            if (i == start) {
+                return -1;
+            }
+            number = negative ? -number : number;
+            if (number > Integer.MAX_VALUE) {
+                return -1;
+            }
+            out[offset + parsed++] = (int) number;
+        }
+    }
+
+    /**
+     * Closes the underlying file descriptor. The node is reopened on the next access.
+     */
+    public synchronized void close() {
+        if (mFd != null) {
+            try {
+                Os.close(mFd);
+            } catch (ErrnoException e) {
+                // Ignored, not much we can do anyway
+            }
+            mFd = null;
+        }
+    }
+
+    /**
+     * Copies the given value into the reusable buffer.
+     *
+     * @return the encoded length, or -1 if the value does not fit
+     */
+    private int encode(String value) {
+        final int length = value.length();
+        if (length > mBuffer.length) {
+            return -1;
+        }
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c > 0x7f) {
+                // Not plain ASCII, leave it to the regular writer
+                return -1;
+            }
+            mBuffer[i] = (byte) c;
+        }
+        return length;
+    }
+
+    /**
+     * Makes sure the descriptor is open and usable for the given access.
+     * Nodes are opened read-write when possible so reads and writes can share one
+     * descriptor, and read-only or write-only otherwise.
+     */
+    private boolean open(int access) {
+        if (mFd != null) {
+            if (mAccessMode == OsConstants.O_RDWR || mAccessMode == access) {
+                return true;
+            }
+            close();
+        }
+        final int[] modes = access == OsConstants.O_RDONLY
+                ? new int[] { OsConstants.O_RDWR, OsConstants.O_RDONLY }
+                : new int[] { OsConstants.O_RDWR, OsConstants.O_WRONLY };
+        for (int mode : modes) {
+            try {
+                mFd = Os.open(mPath, mode | OsConstants.O_CLOEXEC, 0);
+                mAccessMode = mode;
+                return true;
+            } catch (ErrnoException e) {
+                // Try the next mode
+            }
+        }
+        return false;
+    }
+}
@@ -16,13 +16,24 @@
 
 package org.lineageos.tests.hardware.unit;
 
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import lineageos.app.LineageContextConstants;
+import lineageos.hardware.DisplayMode;
+import lineageos.hardware.HardwareCapabilities;
 import lineageos.hardware.LineageHardwareManager;
 import lineageos.hardware.ILineageHardwareService;
 
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by adnan on 9/1/15.
  */
@@ -47,4 +58,193 @@ public class LineageHardwareManagerTest extends AndroidTestCase {
         ILineageHardwareService ilineageStatusBarManager = mLineageHardwareManager.getService();
         assertNotNull(ilineageStatusBarManager);
     }
+
+    @SmallTest
+    public void testCapabilitiesAreCached() {
+        HardwareCapabilities capabilities = mLineageHardwareManager.getCapabilities();
+        assertNotNull(capabilities);
+        assertSame(capabilities, mLineageHardwareManager.getCapabilities());
+        assertEquals(mLineageHardwareManager.getSupportedFeatures(),
+                capabilities.getSupportedFeatures());
+        assertEquals(capabilities.getColorCalibrationMax(),
+                mLineageHardwareManager.getDisplayColorCalibrationMax());
+        assertEquals(capabilities.getVibratorMaxIntensity(),
+                mLineageHardwareManager.getVibratorMaxIntensity());
+    }
+
+    @SmallTest
+    public void testIsSupportedByName() throws Exception {
+        for (Field f : LineageHardwareManager.class.getFields()) {
+            if (!f.getName().startsWith("FEATURE_")) {
+                continue;
+            }
+            assertEquals(f.getName(), mLineageHardwareManager.isSupported(f.getInt(null)),
+                    mLineageHardwareManager.isSupported(f.getName()));
+        }
+        assertFalse(mLineageHardwareManager.isSupported("FEATURE_UNKNOWN"));
+        assertFalse(mLineageHardwareManager.isSupported("BOOLEAN_FEATURES_MASK"));
+    }
+
+    @SmallTest
+    public void testDisplayModesAreCached() {
+        org.junit.Assume.assumeTrue(mLineageHardwareManager.isSupported(
+                LineageHardwareManager.FEATURE_DISPLAY_MODES));
+
+        DisplayMode[] modes = mLineageHardwareManager.getDisplayModes();
+        assertNotNull(modes);
+        DisplayMode[] cached = mLineageHardwareManager.getDisplayModes();
+        // Callers get their own copy of the cached catalogue
+        assertNotSame(modes, cached);
+        assertEquals(modes.length, cached.length);
+        for (int i = 0; i < modes.length; i++) {
+            assertSame(modes[i], cached[i]);
+        }
+    }
+
+    @SmallTest
+    public void testGetDisplayGammaCalibrations() {
+        org.junit.Assume.assumeTrue(mLineageHardwareManager.isSupported(
+                LineageHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION));
+
+        final int controls = mLineageHardwareManager.getNumGammaControls();
+        int[] calibrations = mLineageHardwareManager.getDisplayGammaCalibrations();
+        assertNotNull(calibrations);
+        assertEquals(controls * LineageHardwareManager.GAMMA_CALIBRATION_STRIDE,
+                calibrations.length);
+        for (int idx = 0; idx < controls; idx++) {
+            int[] rgb = mLineageHardwareManager.getDisplayGammaCalibration(idx);
+            int offset = idx * LineageHardwareManager.GAMMA_CALIBRATION_STRIDE;
+            assertEquals(rgb[0], calibrations[offset
+                    + LineageHardwareManager.GAMMA_CALIBRATION_RED_INDEX]);
+            assertEquals(rgb[1], calibrations[offset
+                    + LineageHardwareManager.GAMMA_CALIBRATION_GREEN_INDEX]);
+            assertEquals(rgb[2], calibrations[offset
+                    + LineageHardwareManager.GAMMA_CALIBRATION_BLUE_INDEX]);
+        }
+
+        // Writing back the current values must succeed
+        assertTrue(mLineageHardwareManager.setDisplayGammaCalibrations(calibrations));
+        assertFalse(mLineageHardwareManager.setDisplayGammaCalibrations(
+                Arrays.copyOf(calibrations, calibrations.length + 1)));
+    }
+
+    @SmallTest
+    public void testUnravelCapabilitiesFromParcel() {
+        HardwareCapabilities capabilities = new HardwareCapabilities(
+                LineageHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION
+                        | LineageHardwareManager.FEATURE_VIBRATOR,
+                255, 1, 256, 80, 10, 100, 90);
+
+        Parcel parcel = Parcel.obtain();
+        capabilities.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        HardwareCapabilities fromParcel = HardwareCapabilities.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        assertEquals(capabilities.getSupportedFeatures(), fromParcel.getSupportedFeatures());
+        assertEquals(255, fromParcel.getColorCalibrationDefault());
+        assertEquals(1, fromParcel.getColorCalibrationMin());
+        assertEquals(256, fromParcel.getColorCalibrationMax());
+        assertEquals(80, fromParcel.getVibratorDefaultIntensity());
+        assertEquals(10, fromParcel.getVibratorMinIntensity());
+        assertEquals(100, fromParcel.getVibratorMaxIntensity());
+        assertEquals(90, fromParcel.getVibratorWarningIntensity());
+    }
+
+    @SmallTest
+    public void testGetFeatureStatesMatchesGet() {
+        final int mask = mLineageHardwareManager.getSupportedFeatures()
+                & LineageHardwareManager.BOOLEAN_FEATURES_MASK;
+        final int states = mLineageHardwareManager.getFeatureStates(mask);
+        assertEquals(0, states & ~mask);
+        for (int remaining = mask; remaining != 0; remaining &= remaining - 1) {
+            final int feature = Integer.lowestOneBit(remaining);
+            assertEquals(mLineageHardwareManager.get(feature), (states & feature) != 0);
+        }
+    }
+
+    @SmallTest
+    public void testSetFeatureStatesRejectsNonBooleanFeatures() {
+        try {
+            mLineageHardwareManager.setFeatureStates(
+                    LineageHardwareManager.FEATURE_DISPLAY_MODES, 0);
+            fail("Non-boolean features must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @MediumTest
+    public void testHardwareStateListener() throws InterruptedException {
+        final int supported = mLineageHardwareManager.getSupportedFeatures()
+                & LineageHardwareManager.BOOLEAN_FEATURES_MASK;
+        org.junit.Assume.assumeTrue(supported != 0);
+
+        final int feature = Integer.lowestOneBit(supported);
+        final boolean initial = mLineageHardwareManager.get(feature);
+        final CountDownLatch latch = new CountDownLatch(1);
+        LineageHardwareManager.HardwareStateListener listener =
+                new LineageHardwareManager.HardwareStateListener() {
+            @Override
+            public void onFeatureStateChanged(int changed, boolean enabled) {
+                if (changed == feature && enabled != initial) {
+                    latch.countDown();
+                }
+            }
+
+            @Override
+            public void onDisplayModeChanged(DisplayMode mode) {
+            }
+        };
+
+        mLineageHardwareManager.registerHardwareStateListener(listener);
+        try {
+            assertTrue(mLineageHardwareManager.set(feature, !initial));
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            mLineageHardwareManager.set(feature, initial);
+            mLineageHardwareManager.unregisterHardwareStateListener(listener);
+        }
+    }
+
+    @SmallTest
+    public void testCallStatistics() {
+        mLineageHardwareManager.getFeatureStates(0);
+        Bundle stats = mLineageHardwareManager.getCallStatistics();
+        assertNotNull(stats);
+        long[] values = stats.getLongArray(
+                LineageHardwareManager.BOOLEAN_FEATURES_MASK + "/getFeatureStates");
+        assertNotNull(values);
+        // First entry is the number of calls made
+        assertTrue(values[0] >= 1);
+    }
+
+    @MediumTest
+    public void testColorCalibrationWritesAreCoalesced() throws Exception {
+        org.junit.Assume.assumeTrue(mLineageHardwareManager.isSupported(
+                LineageHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION));
+
+        final int[] initial = mLineageHardwareManager.getDisplayColorCalibration();
+        final int[] rgb = Arrays.copyOf(initial, 3);
+        try {
+            assertTrue(mLineageHardwareManager.setDisplayColorCalibration(rgb));
+            final long skipped = mLineageHardwareManager.getCallStatistics()
+                    .getLong("colorCalibrationFramesSkipped");
+
+            // Repeating the current value must never reach the hardware
+            for (int i = 0; i < 10; i++) {
+                mLineageHardwareManager.setDisplayColorCalibrationAsync(rgb);
+            }
+            // The frames are oneway, give them some time to arrive
+            long now = skipped;
+            for (int i = 0; i < 50 && now < skipped + 10; i++) {
+                SystemClock.sleep(20);
+                now = mLineageHardwareManager.getCallStatistics()
+                        .getLong("colorCalibrationFramesSkipped");
+            }
+            assertEquals(skipped + 10, now);
+        } finally {
+            mLineageHardwareManager.setDisplayColorCalibration(initial);
+        }
+    }
 }
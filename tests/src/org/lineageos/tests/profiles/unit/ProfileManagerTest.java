@@ -26,6 +26,7 @@ import android.util.Log;
 import lineageos.app.LineageContextConstants;
 import lineageos.app.Profile;
 import lineageos.app.ProfileManager;
+import lineageos.app.ProfileSummary;
 import lineageos.app.IProfileManager;
 import lineageos.providers.LineageSettings;
 
@@ -193,6 +194,30 @@ public class ProfileManagerTest extends AndroidTestCase {
         mProfileManager.resetAll();
     }
 
+    @SmallTest
+    public void testGetProfileSummaries() {
+        ensureProfilesEnabled();
+        Profile expectedProfile1 = new Profile("PROFILE 1");
+        Profile expectedProfile2 = new Profile("PROFILE 2");
+        mProfileManager.addProfile(expectedProfile1);
+        mProfileManager.addProfile(expectedProfile2);
+
+        Profile[] expectedProfiles = mProfileManager.getProfiles();
+        ProfileSummary[] actualSummaries = mProfileManager.getProfileSummaries();
+        assertEquals(expectedProfiles.length, actualSummaries.length);
+
+        UUID activeUuid = mProfileManager.getActiveProfile().getUuid();
+        for (int i = 0; i < actualSummaries.length; i++) {
+            assertEquals(expectedProfiles[i].getUuid(), actualSummaries[i].getUuid());
+            assertEquals(expectedProfiles[i].getName(), actualSummaries[i].getName());
+            assertEquals(expectedProfiles[i].getProfileType(),
+                    actualSummaries[i].getProfileType());
+            assertEquals(activeUuid.equals(actualSummaries[i].getUuid()),
+                    actualSummaries[i].isActive());
+        }
+        mProfileManager.resetAll();
+    }
+
     @SmallTest
     public void testProfileExists() {
         ensureProfilesEnabled();
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import lineageos.hardware.DisplayMode;
+
+import org.lineageos.internal.util.DisplayModeMappings;
+
+public class DisplayModeMappingsTest extends AndroidTestCase {
+
+    private static final String[] MAPPINGS = {
+        "standard:Natural",
+        "vivid:Vibrant",
+        "invalid",
+    };
+
+    private static final DisplayMode[] MODES = {
+        new DisplayMode(0, "standard"),
+        new DisplayMode(1, "vivid"),
+        new DisplayMode(2, "srgb"),
+    };
+
+    @SmallTest
+    public void testRemapWithoutFilter() {
+        DisplayModeMappings mappings = new DisplayModeMappings(MAPPINGS, false);
+
+        DisplayMode[] modes = mappings.remap(MODES);
+        assertEquals(3, modes.length);
+        assertMode(0, "Natural", modes[0]);
+        assertMode(1, "Vibrant", modes[1]);
+        // Unmapped modes are passed through untouched
+        assertSame(MODES[2], modes[2]);
+        assertSame(MODES[2], mappings.remap(MODES[2]));
+    }
+
+    @SmallTest
+    public void testRemapWithFilter() {
+        DisplayModeMappings mappings = new DisplayModeMappings(MAPPINGS, true);
+
+        DisplayMode[] modes = mappings.remap(MODES);
+        assertEquals(2, modes.length);
+        assertMode(0, "Natural", modes[0]);
+        assertMode(1, "Vibrant", modes[1]);
+        assertNull(mappings.remap(MODES[2]));
+    }
+
+    @SmallTest
+    public void testRemapWithoutMappings() {
+        DisplayModeMappings mappings = new DisplayModeMappings(null, false);
+        assertEquals(MODES.length, mappings.remap(MODES).length);
+
+        mappings = new DisplayModeMappings(new String[0], true);
+        assertEquals(0, mappings.remap(MODES).length);
+    }
+
+    @SmallTest
+    public void testRemapNull() {
+        DisplayModeMappings mappings = new DisplayModeMappings(MAPPINGS, true);
+        assertNull(mappings.remap((DisplayMode) null));
+        assertNull(mappings.remap((DisplayMode[]) null));
+    }
+
+    private static void assertMode(int id, String name, DisplayMode mode) {
+        assertEquals(id, mode.id);
+        assertEquals(name, mode.name);
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.lineageos.internal.util.InFlightRequests;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class InFlightRequestsTest extends AndroidTestCase {
+
+    private static final long TIMEOUT_MS = 60 * 1000;
+    private static final String KEY = "Seattle, WA";
+
+    private InFlightRequests<String> mRequests;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRequests = new InFlightRequests<>(TIMEOUT_MS);
+    }
+
+    @SmallTest
+    public void testIdenticalRequestsWait() {
+        assertTrue(mRequests.begin(KEY, "first", 0));
+        assertFalse(mRequests.begin(KEY, "second", TIMEOUT_MS - 1));
+        assertEquals(1, mRequests.size());
+        assertEquals(1, mRequests.getCoalescedCount());
+
+        assertEquals(Arrays.asList("first", "second"), mRequests.complete(KEY, "first"));
+        assertEquals(0, mRequests.size());
+    }
+
+    @SmallTest
+    public void testStaleRequestHandsOverWaiters() {
+        assertTrue(mRequests.begin(KEY, "stale", 0));
+        assertFalse(mRequests.begin(KEY, "waiter", 1));
+
+        //The stale request never got an answer
+        assertTrue(mRequests.begin(KEY, "fresh", TIMEOUT_MS));
+        assertEquals(1, mRequests.size());
+
+        //Waiters of the stale request are answered with the result of the fresh one
+        assertEquals(Arrays.asList("fresh", "waiter"), mRequests.complete(KEY, "fresh"));
+        assertEquals(0, mRequests.size());
+
+        //A late answer to the stale request only reaches its owner
+        assertEquals(Arrays.asList("stale"), mRequests.complete(KEY, "stale"));
+    }
+
+    @SmallTest
+    public void testAbortReturnsWaiters() {
+        assertTrue(mRequests.begin(KEY, "first", 0));
+        assertFalse(mRequests.begin(KEY, "second", 1));
+
+        assertTrue(mRequests.abort(KEY, "other").isEmpty());
+        List<String> waiters = mRequests.abort(KEY, "first");
+        assertEquals(Arrays.asList("second"), waiters);
+        assertEquals(0, mRequests.size());
+    }
+
+    @SmallTest
+    public void testCancel() {
+        assertTrue(mRequests.begin(KEY, "first", 0));
+        assertFalse(mRequests.begin(KEY, "second", 1));
+
+        //A waiting request never reached the backend
+        assertFalse(mRequests.cancel("second".hashCode()));
+        //Nobody waits for the forwarded request anymore
+        assertTrue(mRequests.cancel("first".hashCode()));
+        assertEquals(0, mRequests.size());
+        //Unknown requests are left to the backend
+        assertTrue(mRequests.cancel("unknown".hashCode()));
+    }
+
+    @SmallTest
+    public void testCancelKeepsRequestForWaiters() {
+        assertTrue(mRequests.begin(KEY, "first", 0));
+        assertFalse(mRequests.begin(KEY, "second", 1));
+
+        assertFalse(mRequests.cancel("first".hashCode()));
+        assertEquals(Arrays.asList("second"), mRequests.complete(KEY, "first"));
+    }
+}
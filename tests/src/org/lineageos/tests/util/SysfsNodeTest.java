@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.util;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import org.lineageos.internal.util.FileUtils;
+import org.lineageos.internal.util.SysfsNode;
+
+import java.io.File;
+
+public class SysfsNodeTest extends AndroidTestCase {
+
+    private static final String TAG = SysfsNodeTest.class.getSimpleName();
+
+    private static final int BENCHMARK_ITERATIONS = 2000;
+
+    private File mDir;
+    private File mFile;
+    private SysfsNode mNode;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(mContext.getCacheDir(), TAG);
+        mDir.mkdirs();
+        mFile = new File(mDir, "node");
+        assertTrue(FileUtils.writeLine(mFile.getPath(), "255 255 255\n"));
+        mNode = new SysfsNode(mFile.getPath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mNode.close();
+        mFile.delete();
+        mDir.delete();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testReadOneLine() {
+        assertEquals("255 255 255", mNode.readOneLine());
+        // Reads always start at offset 0
+        assertEquals("255 255 255", mNode.readOneLine());
+    }
+
+    @SmallTest
+    public void testWriteLine() {
+        assertTrue(mNode.writeLine("128 64 32"));
+        assertEquals("128 64 32", mNode.readOneLine());
+        assertEquals("128 64 32", FileUtils.readOneLine(mFile.getPath()));
+
+        // A shorter value must not leave stale bytes behind
+        assertTrue(mNode.writeLine("1"));
+        assertEquals("1", mNode.readOneLine());
+    }
+
+    @SmallTest
+    public void testSeesExternalChanges() {
+        assertEquals("255 255 255", mNode.readOneLine());
+        assertTrue(FileUtils.writeLine(mFile.getPath(), "0 0 0"));
+        assertEquals("0 0 0", mNode.readOneLine());
+    }
+
+    @SmallTest
+    public void testMissingNodeFallsBack() {
+        SysfsNode missing = new SysfsNode(new File(mDir, "missing").getPath());
+        assertNull(missing.readOneLine());
+        missing.close();
+    }
+
+    @SmallTest
+    public void testReopensAfterClose() {
+        assertEquals("255 255 255", mNode.readOneLine());
+        mNode.close();
+        assertTrue(mNode.writeLine("10 20 30"));
+        assertEquals("10 20 30", mNode.readOneLine());
+    }
+
+    @SmallTest
+    public void testParseInts() {
+        int[] out = new int[5];
+        assertEquals(3, SysfsNode.parseInts("255 -128 0\n", out, 1, 3));
+        assertEquals(255, out[1]);
+        assertEquals(-128, out[2]);
+        assertEquals(0, out[3]);
+
+        assertEquals(2, SysfsNode.parseInts("  1\t 2 ", out, 0, 5));
+        assertEquals(1, out[0]);
+        assertEquals(2, out[1]);
+
+        assertEquals(0, SysfsNode.parseInts("", out, 0, 5));
+        assertEquals(Integer.MIN_VALUE, parseOne(String.valueOf(Integer.MIN_VALUE)));
+        assertEquals(Integer.MAX_VALUE, parseOne(String.valueOf(Integer.MAX_VALUE)));
+    }
+
+    @SmallTest
+    public void testParseIntsRejectsInvalidValues() {
+        int[] out = new int[3];
+        assertEquals(-1, SysfsNode.parseInts(null, out, 0, 3));
+        assertEquals(-1, SysfsNode.parseInts("1 2 3 4", out, 0, 3));
+        assertEquals(-1, SysfsNode.parseInts("1 2", out, 2, 2));
+        assertEquals(-1, SysfsNode.parseInts("1 x 3", out, 0, 3));
+        assertEquals(-1, SysfsNode.parseInts("1 - 3", out, 0, 3));
+        assertEquals(-1, SysfsNode.parseInts("2147483648", out, 0, 3));
+        assertEquals(-1, SysfsNode.parseInts("-2147483649", out, 0, 3));
+    }
+
+    private static int parseOne(String value) {
+        int[] out = new int[1];
+        assertEquals(1, SysfsNode.parseInts(value, out, 0, 1));
+        return out[0];
+    }
+
+    @LargeTest
+    public void testSysfsNodeBenchmark() {
+        final String path = mFile.getPath();
+        final String[] values = { "255 255 255", "254 250 246", "253 245 238" };
+
+        // Warm up
+        for (int i = 0; i < BENCHMARK_ITERATIONS / 10; i++) {
+            FileUtils.writeLine(path, values[i % values.length]);
+            FileUtils.readOneLine(path);
+            mNode.writeLine(values[i % values.length]);
+            mNode.readOneLine();
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            FileUtils.writeLine(path, values[i % values.length]);
+            FileUtils.readOneLine(path);
+        }
+        final long fileUtilsTime = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            mNode.writeLine(values[i % values.length]);
+            mNode.readOneLine();
+        }
+        final long nodeTime = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.d(TAG, "write+read, FileUtils: " + fileUtilsTime / BENCHMARK_ITERATIONS
+                + "ns, SysfsNode: " + nodeTime / BENCHMARK_ITERATIONS + "ns");
+        assertEquals(values[(BENCHMARK_ITERATIONS - 1) % values.length], mNode.readOneLine());
+    }
+}
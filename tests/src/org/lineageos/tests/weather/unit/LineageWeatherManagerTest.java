@@ -16,10 +16,23 @@
 
 package org.lineageos.tests.weather.unit;
 
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.location.Location;
+import android.net.Uri;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
 import android.test.suitebuilder.annotation.SmallTest;
+import lineageos.providers.WeatherContract;
+import lineageos.providers.WeatherContract.WeatherColumns;
 import lineageos.weather.LineageWeatherManager;
 import lineageos.weather.LineageWeatherManager.LookupCityRequestListener;
 import lineageos.weather.LineageWeatherManager.WeatherServiceProviderChangeListener;
@@ -37,6 +50,8 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LineageWeatherManagerTest extends AndroidTestCase {
 
@@ -44,6 +59,11 @@ public class LineageWeatherManagerTest extends AndroidTestCase {
     private static final String CITY_NAME = "Seattle, WA";
     private static final int COUNTDOWN = 1;
     private static final int REQUEST_ID = 42;
+    private static final int PERIODIC_UPDATES = 2;
+    private static final long FRESHNESS_WINDOW_MS = 30 * 60 * 1000;
+    private static final int STRESS_THREADS = 8;
+    private static final int STRESS_REQUESTS_PER_THREAD = 500;
+    private static final long STRESS_TIMEOUT_SECONDS = 60;
     private static final String MOCKED_WEATHER_PROVIDER_LABEL = "Mock'd Weather Service";
     private ILineageWeatherManager.Stub mILineageWeatherManagerSpy;
 
@@ -73,6 +93,10 @@ public class LineageWeatherManagerTest extends AndroidTestCase {
             Mockito.doAnswer(new GetActiveWeatherServiceProviderLabelAnser())
                     .when(mILineageWeatherManagerSpy).getActiveWeatherServiceProviderLabel();
 
+            Mockito.doAnswer(new SubscribeWeatherUpdatesAnswer())
+                    .when(mILineageWeatherManagerSpy).subscribeWeatherUpdates(
+                            Mockito.any(RequestInfo.class), Mockito.anyLong());
+
             Mockito.doAnswer(new CancelRequestAnswer())
                     .when(mILineageWeatherManagerSpy).cancelRequest(Mockito.eq(REQUEST_ID));
         } catch (Exception e) {
@@ -98,6 +122,23 @@ public class LineageWeatherManagerTest extends AndroidTestCase {
         }
     }
 
+    private static class SubscribeWeatherUpdatesAnswer implements Answer<Void> {
+
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+            final RequestInfo requestInfo = (RequestInfo) invocation.getArguments()[0];
+            assertTrue((Long) invocation.getArguments()[1] > 0);
+            final WeatherInfo weatherInfo = new WeatherInfo.Builder(CITY_NAME,
+                    30d, requestInfo.getTemperatureUnit()).build();
+            //Deliver a couple of periodic updates
+            for (int i = 0; i < PERIODIC_UPDATES; i++) {
+                requestInfo.getRequestListener().onWeatherRequestCompleted(requestInfo,
+                        LineageWeatherManager.RequestStatus.COMPLETED, weatherInfo);
+            }
+            return null;
+        }
+    }
+
     private static class LookUpCityAnswer implements Answer<Integer> {
 
         @Override
@@ -235,6 +276,195 @@ public class LineageWeatherManagerTest extends AndroidTestCase {
         }
     }
 
+    @MediumTest
+    public void testRequestPeriodicWeatherUpdates() throws Exception {
+        final CountDownLatch signal = new CountDownLatch(PERIODIC_UPDATES);
+        final WeatherLocation weatherLocation = new WeatherLocation.Builder(CITY_NAME).build();
+        final boolean[] error = {false};
+        final int requestId = mWeatherManager.requestPeriodicWeatherUpdates(weatherLocation,
+                FRESHNESS_WINDOW_MS, new WeatherUpdateRequestListener() {
+            @Override
+            public void onWeatherRequestCompleted(int status, WeatherInfo weatherInfo) {
+                if (status != LineageWeatherManager.RequestStatus.COMPLETED
+                        || !weatherInfo.getCity().equals(CITY_NAME)) {
+                    error[0] = true;
+                }
+                signal.countDown();
+            }
+        });
+        assertTrue(requestId != -1);
+        try {
+            signal.await();
+            assertFalse(error[0]);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+
+        mWeatherManager.removePeriodicWeatherUpdates(requestId);
+        Mockito.verify(mILineageWeatherManagerSpy).unsubscribeWeatherUpdates(requestId);
+    }
+
+    @LargeTest
+    public void testConcurrentWeatherUpdateRequests() throws Exception {
+        final int totalRequests = STRESS_THREADS * STRESS_REQUESTS_PER_THREAD;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch signal = new CountDownLatch(totalRequests);
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger duplicated = new AtomicInteger();
+
+        final Thread[] threads = new Thread[STRESS_THREADS];
+        for (int i = 0; i < STRESS_THREADS; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < STRESS_REQUESTS_PER_THREAD; j++) {
+                        final Location location = new Location("test_location_provider");
+                        final boolean[] notified = {false};
+                        final int requestId = mWeatherManager.requestWeatherUpdate(location,
+                                new WeatherUpdateRequestListener() {
+                            @Override
+                            public void onWeatherRequestCompleted(int status,
+                                    WeatherInfo weatherInfo) {
+                                if (notified[0]) {
+                                    duplicated.incrementAndGet();
+                                    return;
+                                }
+                                notified[0] = true;
+                                if (status == LineageWeatherManager.RequestStatus.COMPLETED) {
+                                    completed.incrementAndGet();
+                                }
+                                signal.countDown();
+                            }
+                        });
+                        if (requestId == -1) {
+                            failed.incrementAndGet();
+                            signal.countDown();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        start.countDown();
+        assertTrue("Not every listener was notified",
+                signal.await(STRESS_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failed.get());
+        assertEquals(0, duplicated.get());
+        assertEquals(totalRequests, completed.get());
+    }
+
+    /**
+     * Serves the weather of {@link #CITY_NAME}, with one forecast, at the given temperature
+     */
+    private static class MockWeatherProvider extends MockContentProvider {
+        volatile double temperature;
+        final AtomicInteger queries = new AtomicInteger();
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            queries.incrementAndGet();
+            final MatrixCursor cursor = new MatrixCursor(projection);
+            final MatrixCursor.RowBuilder current = cursor.newRow();
+            final MatrixCursor.RowBuilder forecast = cursor.newRow();
+            for (String column : projection) {
+                if (WeatherColumns.CURRENT_CITY.equals(column)) {
+                    current.add(CITY_NAME);
+                    forecast.add(null);
+                } else if (WeatherColumns.CURRENT_TEMPERATURE.equals(column)) {
+                    current.add(temperature);
+                    forecast.add(null);
+                } else if (WeatherColumns.CURRENT_TEMPERATURE_UNIT.equals(column)) {
+                    current.add(WeatherColumns.TempUnit.CELSIUS);
+                    forecast.add(null);
+                } else if (WeatherColumns.CURRENT_CONDITION_CODE.equals(column)
+                        || WeatherColumns.FORECAST_CONDITION_CODE.equals(column)) {
+                    current.add(WeatherColumns.WeatherCode.SUNNY);
+                    forecast.add(WeatherColumns.WeatherCode.SUNNY);
+                } else if (WeatherColumns.FORECAST_LOW.equals(column)) {
+                    current.add(null);
+                    forecast.add(10d);
+                } else if (WeatherColumns.FORECAST_HIGH.equals(column)) {
+                    current.add(null);
+                    forecast.add(25d);
+                } else {
+                    current.add(null);
+                    forecast.add(null);
+                }
+            }
+            return cursor;
+        }
+    }
+
+    private void resetLastKnownWeather() throws Exception {
+        final Field observer = LineageWeatherManager.class.getDeclaredField("mWeatherObserver");
+        observer.setAccessible(true);
+        getContext().getContentResolver().unregisterContentObserver(
+                (ContentObserver) observer.get(mWeatherManager));
+        final Field loaded = LineageWeatherManager.class.getDeclaredField(
+                "mLastKnownWeatherLoaded");
+        loaded.setAccessible(true);
+        loaded.set(mWeatherManager, false);
+    }
+
+    @MediumTest
+    public void testGetLastKnownWeather() throws Exception {
+        final MockWeatherProvider provider = new MockWeatherProvider();
+        provider.temperature = 30d;
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(WeatherContract.AUTHORITY, provider);
+        final Context context = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+
+        final Field contextField = LineageWeatherManager.class.getDeclaredField("mContext");
+        contextField.setAccessible(true);
+        final Object realContext = contextField.get(mWeatherManager);
+        resetLastKnownWeather();
+        contextField.set(mWeatherManager, context);
+        try {
+            final WeatherInfo weatherInfo = mWeatherManager.getLastKnownWeather();
+            assertNotNull(weatherInfo);
+            assertEquals(CITY_NAME, weatherInfo.getCity());
+            assertEquals(30d, weatherInfo.getTemperature(), 0d);
+            assertEquals(WeatherColumns.TempUnit.CELSIUS, weatherInfo.getTemperatureUnit());
+            assertEquals(1, weatherInfo.getForecasts().size());
+            assertEquals(25d, weatherInfo.getForecasts().get(0).getHigh(), 0d);
+
+            //Served from the local copy, the weather provider is not queried again
+            assertSame(weatherInfo, mWeatherManager.getLastKnownWeather());
+            assertEquals(1, provider.queries.get());
+
+            //A change of the weather provider invalidates the local copy
+            provider.temperature = 20d;
+            getContext().getContentResolver().notifyChange(
+                    WeatherColumns.CURRENT_AND_FORECAST_WEATHER_URI, null);
+            WeatherInfo updated = mWeatherManager.getLastKnownWeather();
+            for (int i = 0; i < 50 && updated == weatherInfo; i++) {
+                SystemClock.sleep(20);
+                updated = mWeatherManager.getLastKnownWeather();
+            }
+            assertNotSame(weatherInfo, updated);
+            assertEquals(20d, updated.getTemperature(), 0d);
+        } finally {
+            resetLastKnownWeather();
+            contextField.set(mWeatherManager, realContext);
+        }
+    }
+
     @SmallTest
     public void testCancelRequest() {
         mWeatherManager.cancelRequest(REQUEST_ID);
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.weather.unit;
+
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import lineageos.providers.WeatherContract;
+import lineageos.weather.WeatherInfo;
+import lineageos.weather.WeatherInfo.DayForecast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class WeatherInfoParcelTest extends AndroidTestCase {
+
+    private static final String TAG = WeatherInfoParcelTest.class.getSimpleName();
+
+    private static final String mCityName = "Cancun";
+    private static final double mTemperature = 70;
+    private static final int mTemperatureUnit = WeatherContract.WeatherColumns.TempUnit.CELSIUS;
+
+    // Roughly two weeks of hourly forecasts
+    private static final int BENCHMARK_FORECASTS = 14 * 24;
+    private static final int BENCHMARK_ITERATIONS = 1000;
+
+    private static WeatherInfo buildWeatherInfo(int forecastCount) {
+        List<DayForecast> forecasts = new ArrayList<>(forecastCount);
+        for (int i = 0; i < forecastCount; i++) {
+            forecasts.add(new DayForecast.Builder(
+                    WeatherContract.WeatherColumns.WeatherCode.SUNNY + (i % 10))
+                    .setLow(50 + (i % 7))
+                    .setHigh(70 + (i % 5))
+                    .build());
+        }
+        return new WeatherInfo.Builder(mCityName, mTemperature, mTemperatureUnit)
+                .setForecast(forecasts)
+                .build();
+    }
+
+    private static WeatherInfo unparcel(WeatherInfo info) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            info.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return WeatherInfo.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void assertSameForecasts(WeatherInfo expected, WeatherInfo actual) {
+        List<DayForecast> expectedForecasts = expected.getForecasts();
+        List<DayForecast> actualForecasts = actual.getForecasts();
+        assertEquals(expectedForecasts.size(), actualForecasts.size());
+        for (int i = 0; i < expectedForecasts.size(); i++) {
+            assertEquals(expectedForecasts.get(i).getLow(), actualForecasts.get(i).getLow());
+            assertEquals(expectedForecasts.get(i).getHigh(), actualForecasts.get(i).getHigh());
+            assertEquals(expectedForecasts.get(i).getConditionCode(),
+                    actualForecasts.get(i).getConditionCode());
+        }
+    }
+
+    @SmallTest
+    public void testUnravelCompactForecastsFromParcel() {
+        WeatherInfo info = buildWeatherInfo(7);
+        WeatherInfo weatherInfoFromParcel = unparcel(info.withCompactForecasts(true));
+
+        assertEquals(info, weatherInfoFromParcel);
+        assertEquals(info.getCity(), weatherInfoFromParcel.getCity());
+        assertEquals(info.getTemperature(), weatherInfoFromParcel.getTemperature());
+        assertSameForecasts(info, weatherInfoFromParcel);
+
+        //Every forecast must still be distinct
+        List<DayForecast> forecasts = weatherInfoFromParcel.getForecasts();
+        for (int i = 1; i < forecasts.size(); i++) {
+            assertFalse(forecasts.get(0).equals(forecasts.get(i)));
+        }
+    }
+
+    @SmallTest
+    public void testUnravelEmptyCompactForecastsFromParcel() {
+        WeatherInfo info = buildWeatherInfo(0);
+        WeatherInfo weatherInfoFromParcel = unparcel(info.withCompactForecasts(true));
+        assertEquals(0, weatherInfoFromParcel.getForecasts().size());
+    }
+
+    @SmallTest
+    public void testLegacyForecastsByDefault() {
+        WeatherInfo info = buildWeatherInfo(7);
+        assertSame(info, info.withCompactForecasts(false));
+        assertSameForecasts(info, unparcel(info));
+    }
+
+    @LargeTest
+    public void testCompactForecastsParcelBenchmark() {
+        WeatherInfo legacy = buildWeatherInfo(BENCHMARK_FORECASTS);
+        WeatherInfo compact = legacy.withCompactForecasts(true);
+
+        final int legacySize = getParcelSize(legacy);
+        final int compactSize = getParcelSize(compact);
+        final long legacyTime = measureRoundTrip(legacy);
+        final long compactTime = measureRoundTrip(compact);
+
+        Log.d(TAG, BENCHMARK_FORECASTS + " forecasts, legacy: " + legacySize + " bytes "
+                + legacyTime / BENCHMARK_ITERATIONS + "ns/round trip, compact: " + compactSize
+                + " bytes " + compactTime / BENCHMARK_ITERATIONS + "ns/round trip");
+        assertTrue(compactSize < legacySize);
+    }
+
+    private static int getParcelSize(WeatherInfo info) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            info.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static long measureRoundTrip(WeatherInfo info) {
+        // Warm up
+        for (int i = 0; i < BENCHMARK_ITERATIONS / 10; i++) {
+            unparcel(info);
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            unparcel(info);
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+}